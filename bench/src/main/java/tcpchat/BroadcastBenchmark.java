@@ -0,0 +1,49 @@
+package tcpchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One chat line fanned out to a whole room of in-memory connections
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int members;
+
+    List<User> users;
+    User sender;
+    byte[] line;
+
+    @Setup
+    public void setup() throws Exception {
+        Transport transport = new DirectTransport();
+        users = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            User user = new User(new NullSocketChannel(), null, transport);
+            user.changeName("bench-" + members + "-" + i);
+            Room.connect("bench-" + members, user);
+            users.add(user);
+        }
+        sender = users.get(0);
+        line = "hello everyone, how is it going today?".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (User user : users) {
+            user.remove();
+        }
+    }
+
+    @Benchmark
+    public void message() {
+        ChatServer.message(line, 0, line.length, sender);
+    }
+}
@@ -0,0 +1,22 @@
+package tcpchat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// How the client turns each kind of server frame into a line of text
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+    @Param({"MESSAGE alice hello everyone, how is it going today?", "PRIVATE bob are you coming tonight?",
+            "NEWNICK alice alicia", "JOINED carol", "OK"})
+    String frame;
+
+    @Benchmark
+    public String processMessage() {
+        return ChatClient.processMessage(frame);
+    }
+}
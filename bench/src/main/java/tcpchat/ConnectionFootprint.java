@@ -0,0 +1,48 @@
+package tcpchat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+// Heap per idle connection: opens -Dfootprint.users in-memory connections
+// (default 200000), each with a nick and in a room of 100, and prints what
+// they hold on the heap. The channel stands in for the JDK's socket, so
+// its cost (and the kernel's) comes on top; run with a heap big enough
+// for the lot, e.g.
+//
+//   java -Xmx2g -cp bench/target/benchmarks.jar tcpchat.ConnectionFootprint
+public class ConnectionFootprint {
+    public static void main(String[] args) throws Exception {
+        int count = Integer.getInteger("footprint.users", 200_000);
+        Transport transport = new DirectTransport();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // The stand-in channels are the benchmark's, not the server's
+        NullSocketChannel[] channels = new NullSocketChannel[count];
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) channels[i] = new NullSocketChannel();
+        long before = used(memory);
+        for (int i = 0; i < count; i++) {
+            User user = new User(channels[i], null, transport);
+            user.changeName("user" + i);
+            Room.connect("room" + i / 100, user);
+            if (Timeouts.enabled) user.setTimer(new TimerWheel.Timer(() -> { }));
+            users.add(user);
+        }
+        long after = used(memory);
+        // Less the list's slot
+        long each = (after - before) / count - 4;
+        System.out.printf("%d connections: %d bytes each on the heap (%d MB in all)%n", count, each,
+                (after - before) / (1024 * 1024));
+        if (Boolean.getBoolean("footprint.pause")) Thread.sleep(Long.MAX_VALUE);
+        for (User user : users) user.remove();
+    }
+
+    private static long used(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
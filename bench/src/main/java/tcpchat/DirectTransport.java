@@ -0,0 +1,24 @@
+package tcpchat;
+
+import java.io.IOException;
+
+// Flushes a user's queue as soon as it gets a frame, as a reactor does for
+// the connections it owns
+public class DirectTransport implements Transport {
+    @Override
+    public void wake(User user) throws IOException {
+        user.getOutbound().flush(user.getSocket());
+    }
+
+    @Override
+    public void close(User user) {
+    }
+
+    @Override
+    public void drain(User user) {
+    }
+
+    @Override
+    public void handOver(User user, User session) {
+    }
+}
@@ -0,0 +1,58 @@
+package tcpchat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One frame fanned out to a very large room of in-memory connections, by
+// the calling thread alone (threads = 1) or split over a fork/join pool of
+// that many threads. Sampled, so the p99 of a whole delivery can be read
+// off; it can only drop with threads up to the number of cores.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FanOutBenchmark {
+    @Param({"10000", "100000"})
+    int members;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    List<User> users;
+    Room room;
+    ForkJoinPool pool;
+    ByteBuffer frame;
+
+    @Setup
+    public void setup() throws Exception {
+        Transport transport = new DirectTransport();
+        users = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            User user = new User(new NullSocketChannel(), null, transport);
+            user.changeName("fanout-" + members + "-" + i);
+            room = Room.connect("fanout-" + members, user);
+            users.add(user);
+        }
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        frame = ChatServer.encode("MESSAGE fanout-0 hello everyone, how is it going today?");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (pool != null) pool.shutdown();
+        for (User user : users) {
+            user.remove();
+        }
+    }
+
+    @Benchmark
+    public int deliver() {
+        return FanOut.deliver(pool, room, frame, null, null);
+    }
+}
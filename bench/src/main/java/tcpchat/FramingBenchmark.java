@@ -0,0 +1,49 @@
+package tcpchat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Cost of cutting one read into lines, for reads carrying 1 to 256
+// pipelined lines
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    @Param({"1", "16", "256"})
+    int linesPerRead;
+
+    ByteBuffer read;
+    Legacy legacy;
+    LineFramer framer;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < linesPerRead; i++) {
+            sb.append("hello everyone, this is message number ").append(i).append('\n');
+        }
+        read = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        legacy = new Legacy();
+        framer = new LineFramer(4096);
+    }
+
+    @Benchmark
+    public void stringBuilder(Blackhole bh) throws Exception {
+        read.rewind();
+        legacy.frame(read, bh::consume);
+    }
+
+    @Benchmark
+    public void lineFramer(Blackhole bh) throws Exception {
+        read.rewind();
+        while (framer.next(read)) {
+            bh.consume(framer.lineLength());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package tcpchat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+// The input path as it was before the LineFramer and CommandParser, kept as
+// the baseline the benchmarks compare against
+public class Legacy {
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private final StringBuilder partialInput = new StringBuilder();
+
+    // ChatServer.processInput: decode the read, append it, cut lines off the front
+    void frame(ByteBuffer buffer, Consumer<String> lines) throws CharacterCodingException {
+        String message = decoder.decode(buffer).toString();
+        partialInput.append(message);
+        while (partialInput.toString().contains("\n")) {
+            int newlineIndex = partialInput.indexOf("\n");
+            if (newlineIndex == -1) {
+                break;
+            }
+            String completeLine = partialInput.substring(0, newlineIndex).trim();
+            if (!completeLine.isEmpty()) {
+                lines.accept(completeLine);
+            }
+            partialInput.delete(0, newlineIndex + 1);
+        }
+    }
+
+    // ChatServer.commands without the handlers: what each branch extracted
+    static Object parse(String line) {
+        line = line.trim();
+        String[] args;
+        if (line.startsWith("/nick")) {
+            args = line.split(" ");
+            return args[1];
+        } else if (line.startsWith("/join")) {
+            args = line.split(" ");
+            return args[1];
+        } else if (line.startsWith("/leave")) {
+            return "leave";
+        } else if (line.startsWith("/bye")) {
+            return "bye";
+        } else if (line.startsWith("/priv")) {
+            args = line.split(" ");
+            return args[2] + args[1];
+        } else if (line.startsWith("/")) {
+            return line.substring(1);
+        } else {
+            return line;
+        }
+    }
+}
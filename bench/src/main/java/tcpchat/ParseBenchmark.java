@@ -0,0 +1,48 @@
+package tcpchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Parse cost per line, before (trim/startsWith/split) and after
+// (CommandParser), for each kind of line
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"hello everyone, how is it going today?", "/nick alice", "/join lobby",
+            "/priv bob are you coming tonight?"})
+    String line;
+
+    byte[] bytes;
+    CommandParser parser;
+
+    @Setup
+    public void setup() {
+        bytes = line.getBytes(StandardCharsets.UTF_8);
+        parser = new CommandParser();
+    }
+
+    @Benchmark
+    public Object legacy() {
+        return Legacy.parse(line);
+    }
+
+    // Parses and pulls out what the handler needs, as ChatServer.commands does
+    @Benchmark
+    public void commandParser(Blackhole bh) {
+        int command = parser.parse(bytes, 0, bytes.length);
+        switch (command) {
+            case CommandParser.NICK, CommandParser.JOIN -> bh.consume(parser.arg());
+            case CommandParser.PRIV -> {
+                bh.consume(parser.arg());
+                bh.consume(parser.rest());
+            }
+            default -> bh.consume(parser.bodyLength());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package tcpchat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The same server frames in the text protocol and the binary one: bytes on
+// the wire (printed once per trial) and what it costs the client to turn
+// each into a line of text
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"MESSAGE alice hello everyone, how is it going today?", "PRIVATE bob are you coming tonight?",
+            "NEWNICK alice alicia", "JOINED carol", "OK"})
+    String frame;
+
+    byte[] text;
+    byte[] binary;
+    Map<Integer, String> nicks;
+    User user;
+
+    @Setup
+    public void setup() throws Exception {
+        text = (frame + "\n").getBytes(StandardCharsets.UTF_8);
+        String[] words = frame.split(" ");
+        String rest = words.length > 2 ? frame.substring(frame.indexOf(' ', words[0].length() + 1) + 1) : "";
+        user = new User(new NullSocketChannel(), null, new DirectTransport());
+        if (words.length > 1) user.changeName(words[1]);
+        nicks = new HashMap<>();
+        nicks.put(user.getId(), user.getName());
+        ByteBuffer encoded = switch (words[0]) {
+            case "MESSAGE" -> {
+                byte[] line = rest.getBytes(StandardCharsets.UTF_8);
+                yield BinaryProtocol.message(user, line, 0, line.length);
+            }
+            case "PRIVATE" -> BinaryProtocol.privateMessage(words[1], rest);
+            case "NEWNICK" -> {
+                user.changeName(words[2]);
+                yield BinaryProtocol.user(BinaryProtocol.NEWNICK, user);
+            }
+            case "JOINED" -> BinaryProtocol.user(BinaryProtocol.JOINED, user);
+            default -> BinaryProtocol.reply(frame);
+        };
+        binary = new byte[encoded.remaining()];
+        encoded.get(binary);
+        System.out.printf("%n%s: text %d bytes, binary %d bytes%n", words[0], text.length, binary.length);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        user.remove();
+    }
+
+    @Benchmark
+    public String text() {
+        return ChatClient.processMessage(new String(text, 0, text.length - 1, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String binary() {
+        return ChatClient.processFrame(binary, 2, binary.length - 2, nicks);
+    }
+}
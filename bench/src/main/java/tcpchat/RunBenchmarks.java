@@ -0,0 +1,30 @@
+package tcpchat;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks like the plain JMH launcher (same command line), but
+// always keeps the results as JSON under bench-results/, named after
+// -Dbench.tag (e.g. a commit id) or the time, so runs on different commits
+// can be compared.
+public class RunBenchmarks {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        String tag = System.getProperty("bench.tag", new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+        String result = cmd.getResult().orElse("bench-results/" + tag + ".json");
+        File parent = new File(result).getAbsoluteFile().getParentFile();
+        if (parent != null) parent.mkdirs();
+        Options options = new OptionsBuilder()
+                .parent(cmd)
+                .resultFormat(cmd.getResultFormat().orElse(ResultFormatType.JSON))
+                .result(result)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,265 @@
+package tcpchat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The binary protocol, which a client may ask for with "/upgrade binary" as
+// its first command, before /nick; the OK for it is the last text frame.
+// Every frame, both ways, is [length: 2 bytes][opcode: 1 byte][payload],
+// the length counting opcode and payload. Users and rooms are named once,
+// in USER, JOINED, NEWNICK and ROOM frames, and then referred to by an int
+// id: a user's is its session id, which a later connection may get once it
+// has gone, after a LEFT or in another room. A chat line costs 7 bytes
+// around its text instead of "MESSAGE <nick> " and a newline. What
+// has no binary form (STATS, PING, TOKEN, history replays, lines relayed
+// from other nodes) is sent as TEXT, carrying the text frame. Strings are
+// UTF-8 and ids are big-endian.
+class BinaryProtocol {
+    // Server to client
+    static final byte OK = 1;
+    static final byte ERROR = 2;
+    static final byte BYE = 3;
+    static final byte MESSAGE = 4;   // [user id][text]; client to server, [text]
+    static final byte USER = 5;      // [user id][nick]: someone already in the room just joined
+    static final byte JOINED = 6;    // [user id][nick]
+    static final byte LEFT = 7;      // [user id]
+    static final byte NEWNICK = 8;   // [user id][new nick]
+    static final byte PRIVATE = 9;   // [nick length: 1 byte][nick][text]
+    static final byte ROOM = 10;     // [room id][name]: the room just joined
+    static final byte TEXT = 11;     // [text frame without its newline]
+
+    // Client to server; an empty frame does nothing, and answers a PING
+    static final byte NICK = 20;     // [nick]
+    static final byte JOIN = 21;     // [room]
+    static final byte LEAVE = 22;
+    static final byte QUIT = 23;     // /bye
+    static final byte PRIV = 24;     // [nick length: 1 byte][nick][text]
+    static final byte STATS = 25;
+    static final byte HISTORY = 26;  // [count: 4 bytes]
+    static final byte RESUME = 27;   // [token]
+
+    // Longest frame body the 2-byte length can carry
+    static final int maxFrame = 0xffff;
+    // Longest nick in UTF-8 bytes, as PRIVATE and PRIV give its length one
+    // byte; /nick refuses longer ones whatever the protocol
+    static final int maxNick = 0xff;
+
+    private static final ByteBuffer ok = frame(OK, 0).flip().asReadOnlyBuffer();
+    private static final ByteBuffer error = frame(ERROR, 0).flip().asReadOnlyBuffer();
+    private static final ByteBuffer bye = frame(BYE, 0).flip().asReadOnlyBuffer();
+
+    // A frame with room for a payload of n bytes, positioned after the opcode
+    private static ByteBuffer frame(byte opcode, int n) {
+        if (n + 1 > maxFrame) throw new IllegalArgumentException("Frame of " + n + " bytes");
+        return ByteBuffer.allocate(3 + n).putShort((short) (n + 1)).put(opcode);
+    }
+
+    // The binary form of a text reply
+    static ByteBuffer reply(String message) {
+        return switch (message) {
+            case "OK" -> ok;
+            case "ERROR" -> error;
+            case "BYE" -> bye;
+            default -> {
+                byte[] line = message.getBytes(StandardCharsets.UTF_8);
+                yield text(line, 0, line.length);
+            }
+        };
+    }
+
+    static ByteBuffer message(User from, byte[] text, int offset, int length) {
+        return frame(MESSAGE, 4 + length).putInt(from.getId()).put(text, offset, length).flip().asReadOnlyBuffer();
+    }
+
+    // USER, JOINED or NEWNICK: the user's id and its current name
+    static ByteBuffer user(byte opcode, User user) {
+        byte[] nick = user.getName().getBytes(StandardCharsets.UTF_8);
+        return frame(opcode, 4 + nick.length).putInt(user.getId()).put(nick).flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer left(User user) {
+        return frame(LEFT, 4).putInt(user.getId()).flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer room(Room room) {
+        byte[] name = room.getName().getBytes(StandardCharsets.UTF_8);
+        return frame(ROOM, 4 + name.length).putInt(room.getId()).put(name).flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer privateMessage(String from, String message) {
+        byte[] nick = from.getBytes(StandardCharsets.UTF_8);
+        if (nick.length > maxNick) throw new IllegalArgumentException("Nick of " + nick.length + " bytes");
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        return frame(PRIVATE, 1 + nick.length + text.length).put((byte) nick.length).put(nick).put(text)
+                .flip().asReadOnlyBuffer();
+    }
+
+    // Wraps text frames as TEXT, one per line; a batch holds several
+    static ByteBuffer text(ByteBuffer frames) {
+        ByteBuffer in = frames.duplicate();
+        byte[] a = new byte[in.remaining()];
+        in.get(a);
+        return text(a, 0, a.length);
+    }
+
+    // TEXT frames for the lines in a[from, to); a last line may lack its newline
+    private static ByteBuffer text(byte[] a, int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (a[i] == '\n') lines++;
+        }
+        if (to > from && a[to - 1] != '\n') lines++;
+        ByteBuffer out = ByteBuffer.allocate(to - from + 3 * Math.max(1, lines));
+        int start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to ? i > start : a[i] == '\n') {
+                if (i - start + 1 > maxFrame) throw new IllegalArgumentException("Line of " + (i - start) + " bytes");
+                out.putShort((short) (i - start + 1)).put(TEXT).put(a, start, i - start);
+                start = i + 1;
+            }
+        }
+        if (to == from) out.putShort((short) 1).put(TEXT);
+        return out.flip().asReadOnlyBuffer();
+    }
+
+    private static final byte[] ping = {TEXT, 'P', 'I', 'N', 'G'};
+
+    // Whether a frame's body is the server's keepalive
+    static boolean isPing(byte[] a, int offset, int length) {
+        return length == ping.length && Arrays.equals(a, offset, offset + length, ping, 0, ping.length);
+    }
+
+    // The CommandParser id of a frame body's command; EMPTY for an empty
+    // frame or an unknown opcode
+    static int commandOf(byte[] a, int offset, int length) {
+        if (length == 0) return CommandParser.EMPTY;
+        return switch (a[offset]) {
+            case MESSAGE -> CommandParser.MESSAGE;
+            case NICK -> CommandParser.NICK;
+            case JOIN -> CommandParser.JOIN;
+            case LEAVE -> CommandParser.LEAVE;
+            case QUIT -> CommandParser.BYE;
+            case PRIV -> CommandParser.PRIV;
+            case STATS -> CommandParser.STATS;
+            case HISTORY -> CommandParser.HISTORY;
+            case RESUME -> CommandParser.RESUME;
+            default -> CommandParser.EMPTY;
+        };
+    }
+
+    // Runs one frame body from a binary client, a[offset, offset + length)
+    static void command(byte[] a, int offset, int length, User user) throws Exception {
+        if (length == 0) return;
+        int end = offset + length;
+        int at = offset + 1;
+        switch (a[offset]) {
+            case MESSAGE -> {
+                ChatServer.starting(CommandParser.MESSAGE, user);
+                // A newline would split the line for text clients
+                if (indexOf(a, at, end, (byte) '\n') >= 0) ChatServer.reply("ERROR", user);
+                else ChatServer.message(a, at, end - at, user);
+            }
+            case NICK -> {
+                ChatServer.starting(CommandParser.NICK, user);
+                String nick = name(a, at, end);
+                if (nick == null) ChatServer.reply("ERROR", user);
+                else ChatServer.nick(nick, user);
+            }
+            case JOIN -> {
+                ChatServer.starting(CommandParser.JOIN, user);
+                String room = name(a, at, end);
+                if (room == null) ChatServer.reply("ERROR", user);
+                else ChatServer.join(room, user);
+            }
+            case LEAVE -> {
+                ChatServer.starting(CommandParser.LEAVE, user);
+                ChatServer.leave(user);
+            }
+            case QUIT -> {
+                ChatServer.starting(CommandParser.BYE, user);
+                ChatServer.bye(user);
+            }
+            case PRIV -> {
+                ChatServer.starting(CommandParser.PRIV, user);
+                int nickEnd = at < end ? at + 1 + (a[at] & 0xff) : end + 1;
+                String nick = nickEnd <= end ? name(a, at + 1, nickEnd) : null;
+                if (nick == null || nickEnd == end || indexOf(a, nickEnd, end, (byte) '\n') >= 0) {
+                    ChatServer.reply("ERROR", user);
+                } else {
+                    ChatServer.priv(new String(a, nickEnd, end - nickEnd, StandardCharsets.UTF_8), nick, user);
+                }
+            }
+            case STATS -> {
+                ChatServer.starting(CommandParser.STATS, user);
+                ChatServer.stats(user);
+            }
+            case HISTORY -> {
+                ChatServer.starting(CommandParser.HISTORY, user);
+                if (end - at != 4) ChatServer.reply("ERROR", user);
+                else ChatServer.history(ByteBuffer.wrap(a, at, 4).getInt(), user);
+            }
+            case RESUME -> {
+                ChatServer.starting(CommandParser.RESUME, user);
+                String token = name(a, at, end);
+                if (token == null) ChatServer.reply("ERROR", user);
+                else ChatServer.resume(token, user);
+            }
+            default -> ChatServer.reply("ERROR", user);
+        }
+    }
+
+    // A nick or room name: not empty, and no spaces or newlines, which text
+    // clients could not tell apart
+    private static String name(byte[] a, int from, int to) {
+        if (from >= to) return null;
+        for (int i = from; i < to; i++) {
+            if ((a[i] & 0xff) <= ' ') return null;
+        }
+        return new String(a, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] a, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (a[i] == b) return i;
+        }
+        return -1;
+    }
+
+    // What a client sends for a line typed in the text protocol's syntax,
+    // parsed with p; null if the line has no binary form
+    static ByteBuffer request(CommandParser p, byte[] line) {
+        int command = p.parse(line, 0, line.length);
+        return switch (command) {
+            // Just the zero length
+            case CommandParser.EMPTY -> ByteBuffer.allocate(2);
+            case CommandParser.MESSAGE -> frame(MESSAGE, p.bodyLength()).put(line, p.bodyStart(), p.bodyLength()).flip();
+            case CommandParser.NICK -> p.hasArg() ? string(NICK, p.arg()) : null;
+            case CommandParser.JOIN -> p.hasArg() ? string(JOIN, p.arg()) : null;
+            case CommandParser.LEAVE -> frame(LEAVE, 0).flip();
+            case CommandParser.BYE -> frame(QUIT, 0).flip();
+            case CommandParser.PRIV -> {
+                if (!p.hasArg() || !p.hasRest()) yield null;
+                byte[] nick = p.arg().getBytes(StandardCharsets.UTF_8);
+                byte[] text = p.rest().getBytes(StandardCharsets.UTF_8);
+                if (nick.length > maxNick) yield null;
+                yield frame(PRIV, 1 + nick.length + text.length).put((byte) nick.length).put(nick).put(text).flip();
+            }
+            case CommandParser.STATS -> frame(STATS, 0).flip();
+            case CommandParser.HISTORY -> {
+                try {
+                    yield frame(HISTORY, 4).putInt(Integer.parseInt(p.arg())).flip();
+                } catch (NumberFormatException e) {
+                    yield null;
+                }
+            }
+            case CommandParser.RESUME -> p.hasArg() ? string(RESUME, p.arg()) : null;
+            default -> null;
+        };
+    }
+
+    private static ByteBuffer string(byte opcode, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return frame(opcode, bytes.length).put(bytes).flip();
+    }
+}
@@ -0,0 +1,84 @@
+package tcpchat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Direct buffers in power-of-two size classes from 512 bytes to 64 KB.
+// Sockets read into and write from direct memory without the extra copy
+// the JDK makes for heap buffers, and pooling them keeps allocateDirect
+// (slow, and only freed by the GC) off the hot path. Connections borrow a
+// buffer while they have bytes in flight and give it back when idle, so an
+// idle connection holds none. The pool keeps at most chat.pool.maxBytes of
+// free buffers; anything beyond that is left to the GC.
+class BufferPool {
+    private static final int minShift = 9;
+    private static final int maxShift = 16;
+    static final int maxPooled = 1 << maxShift;
+
+    static final long maxBytes = Long.getLong("chat.pool.maxBytes", 64L * 1024 * 1024);
+
+    private static final ArrayDeque<ByteBuffer>[] free = newClasses();
+
+    // For the server stats
+    static final AtomicLong allocated = new AtomicLong();
+    static final AtomicLong pooled = new AtomicLong();
+    static final AtomicLong borrowed = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<ByteBuffer>[] newClasses() {
+        ArrayDeque<ByteBuffer>[] classes = new ArrayDeque[maxShift - minShift + 1];
+        for (int i = 0; i < classes.length; i++) classes[i] = new ArrayDeque<>();
+        return classes;
+    }
+
+    // A cleared direct buffer of at least size bytes. Sizes over 64 KB get a
+    // buffer of their own, which is not pooled.
+    static ByteBuffer acquire(int size) {
+        if (size > maxPooled) {
+            allocated.addAndGet(size);
+            return ByteBuffer.allocateDirect(size);
+        }
+        int c = sizeClass(size);
+        ArrayDeque<ByteBuffer> list = free[c];
+        ByteBuffer buffer;
+        synchronized (list) {
+            buffer = list.pollFirst();
+        }
+        int capacity = 1 << (c + minShift);
+        if (buffer == null) {
+            allocated.addAndGet(capacity);
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            pooled.addAndGet(-capacity);
+        }
+        borrowed.addAndGet(capacity);
+        return buffer.clear();
+    }
+
+    // Hands a buffer from acquire() back. It must not be used afterwards.
+    static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > maxPooled) return;
+        borrowed.addAndGet(-capacity);
+        if (pooled.get() + capacity > maxBytes) return;
+        ArrayDeque<ByteBuffer> list = free[sizeClass(capacity)];
+        synchronized (list) {
+            list.addFirst(buffer);
+        }
+        pooled.addAndGet(capacity);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << minShift) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+    }
+
+    // Copies as much of from as fits into to, moving both positions
+    static void transfer(ByteBuffer from, ByteBuffer to) {
+        int n = Math.min(from.remaining(), to.remaining());
+        to.put(to.position(), from, from.position(), n);
+        to.position(to.position() + n);
+        from.position(from.position() + n);
+    }
+}
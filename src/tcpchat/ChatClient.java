@@ -0,0 +1,498 @@
+package tcpchat;
+
+import java.io.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.swing.*;
+
+
+public class ChatClient {
+
+    // Variáveis relacionadas com a interface gráfica --- * NÃO MODIFICAR *
+    JFrame frame = new JFrame("Chat Client");
+    private JTextField chatBox = new JTextField();
+    private JTextArea chatArea = new JTextArea();
+    // --- Fim das variáveis relacionadas coma interface gráfica
+
+    // Se for necessário adicionar variáveis ao objecto Client, devem
+    // ser colocadas aqui
+
+    // A pre-allocated buffer for the received data; writes borrow their own
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(16384);
+
+    // Splits what is read into the server's frames, however the reads cut them;
+    // a new connection gets a new one
+    private LineFramer framer = new LineFramer(64 * 1024);
+
+    // Incoming and outgoing text is UTF-8
+    static private final Charset charset = StandardCharsets.UTF_8;
+
+    // Socket Channel
+    private SocketChannel sc;
+    private final String server;
+    private final int port;
+
+    // The server's token for our session, if it keeps sessions (see
+    // Resumption). A lost connection is made again, up to reconnectAttempts
+    // times in a row, chat.client.reconnectMillis apart, and the first thing
+    // sent on it asks for the session back.
+    private String token;
+    private int reconnects;
+    static final int reconnectAttempts = 5;
+    static final int reconnectMillis = Integer.getInteger("chat.client.reconnectMillis", 1000);
+
+    // Selector
+    private Selector selector;
+
+    // Messages
+    private ConcurrentLinkedQueue<String> messageQueue = new ConcurrentLinkedQueue<>();
+
+    // The message being written, borrowed from the pool only while some of it
+    // has not gone out; null otherwise
+    private ByteBuffer out;
+
+    // "binary" asks the server for the binary protocol (see BinaryProtocol)
+    // on connect; typed messages wait until it answers, and a server that
+    // says no is spoken to in text
+    static final boolean useBinary = System.getProperty("chat.client.protocol", "text").equals("binary");
+    private boolean upgrading;
+    private boolean binary;
+    // Binary protocol: the names behind the user ids the server has sent
+    private final Map<Integer, String> nicks = new HashMap<>();
+    private final CommandParser parser = new CommandParser();
+
+    // Most lines kept in the chat area; older ones are dropped from the top
+    static final int scrollback = Math.max(1, Integer.getInteger("chat.client.scrollback", 5000));
+    // Lines received are handed to Swing at most this often, in one batch
+    static final int refreshMillis = Integer.getInteger("chat.client.refreshMillis", 50);
+
+    // Lines received and not shown yet, never more than scrollback of them,
+    // so a flood between two refreshes only keeps what would stay on screen.
+    // Guarded by itself.
+    private final ArrayDeque<String> incoming = new ArrayDeque<>();
+    // Started by the first line of a batch; shows the batch on the event thread
+    private final javax.swing.Timer refresh;
+    // Length of every line in the chat area, oldest first, as a ring; event
+    // thread only
+    private final int[] shown = new int[scrollback];
+    private int shownFirst;
+    private int shownCount;
+
+    // Método a usar para acrescentar uma string à caixa de texto
+    // * NÃO MODIFICAR *
+    public void printMessage(final String message) {
+        chatArea.append(message);
+    }
+
+    // What the network thread shows a line with: it is queued, and the first
+    // line of a batch starts the refresh that shows it
+    private void queueMessage(String message) {
+        synchronized (incoming) {
+            if (incoming.size() == scrollback) incoming.pollFirst();
+            incoming.addLast(message);
+            if (incoming.size() == 1) refresh.start();
+        }
+    }
+
+    // Appends the lines received since the last refresh in one go and drops
+    // as many of the oldest as it takes to stay within scrollback
+    private void showIncoming() {
+        String[] lines;
+        synchronized (incoming) {
+            lines = incoming.toArray(new String[0]);
+            incoming.clear();
+        }
+        if (lines.length == 0) return;
+        StringBuilder text = new StringBuilder();
+        int drop = 0;
+        for (String line : lines) {
+            if (shownCount == scrollback) {
+                drop += shown[shownFirst];
+                shownFirst = (shownFirst + 1) % scrollback;
+                shownCount--;
+            }
+            shown[(shownFirst + shownCount) % scrollback] = line.length();
+            shownCount++;
+            text.append(line);
+        }
+        if (drop > 0) chatArea.replaceRange(null, 0, drop);
+        printMessage(text.toString());
+    }
+
+
+    // Construtor
+    public ChatClient(String server, int port) throws IOException {
+
+        // Inicialização da interface gráfica --- * NÃO MODIFICAR *
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        JPanel panel = new JPanel();
+        panel.setLayout(new BorderLayout());
+        panel.add(chatBox);
+        frame.setLayout(new BorderLayout());
+        frame.add(panel, BorderLayout.SOUTH);
+        frame.add(new JScrollPane(chatArea), BorderLayout.CENTER);
+        frame.setSize(500, 300);
+        frame.setVisible(true);
+        chatArea.setEditable(false);
+        chatBox.setEditable(true);
+        chatBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    newMessage(chatBox.getText());
+                } catch (IOException ex) {
+                } finally {
+                    chatBox.setText("");
+                }
+            }
+        });
+        frame.addWindowListener(new WindowAdapter() {
+            public void windowOpened(WindowEvent e) {
+                chatBox.requestFocusInWindow();
+            }
+        });
+        // --- Fim da inicialização da interface gráfica
+
+        // Se for necessário adicionar código de inicialização ao
+        // construtor, deve ser colocado aqui
+        refresh = new javax.swing.Timer(refreshMillis, e -> showIncoming());
+        refresh.setRepeats(false);
+        // A start() while the last batch is still being shown must not be
+        // folded into it, or its lines would wait for the next one
+        refresh.setCoalesce(false);
+        this.server = server;
+        this.port = port;
+        selector = Selector.open();
+        sc = connect(selector, server, port);
+        greet();
+    }
+
+    // Loads what goes out first, as soon as the connection is up: /upgrade,
+    // and the request for our session back after a lost connection. The
+    // request is sent in the protocol asked for, ahead of the answer.
+    private void greet() {
+        byte[] upgrade = useBinary ? "/upgrade binary\n".getBytes(charset) : new byte[0];
+        ByteBuffer resume = ByteBuffer.allocate(0);
+        if (token != null) {
+            String line = "/resume " + token;
+            resume = useBinary ? BinaryProtocol.request(parser, line.getBytes(charset))
+                    : ByteBuffer.wrap((line + "\n").getBytes(charset));
+        }
+        if (upgrade.length + resume.remaining() == 0) return;
+        out = BufferPool.acquire(upgrade.length + resume.remaining()).put(upgrade).put(resume).flip();
+        upgrading = useBinary;
+    }
+
+    // Starts a non-blocking connect; the channel is registered for OP_CONNECT
+    // and finishConnect() completes it. Also used by the LoadGenerator.
+    static SocketChannel connect(Selector selector, String server, int port) throws IOException {
+        SocketChannel sc = SocketChannel.open();
+        sc.configureBlocking(false);
+        InetSocketAddress isa = new InetSocketAddress(server, port);
+        sc.connect(isa);
+        sc.register(selector, SelectionKey.OP_CONNECT);
+        return sc;
+    }
+
+    static void finishConnect(SocketChannel channel) throws IOException {
+        if (channel.isConnectionPending()) {
+            channel.finishConnect();
+        }
+    }
+
+
+    // Método invocado sempre que o utilizador insere uma mensagem
+    // na caixa de entrada
+    public void newMessage(String message) throws IOException {
+        // PREENCHER AQUI com código que envia a mensagem ao servidor
+        // One line per message, so a pasted newline cannot start another command
+        messageQueue.offer(message.replace('\r', ' ').replace('\n', ' ') + "\n");
+        // The loop only asks for OP_WRITE while something is pending
+        selector.wakeup();
+    }
+
+    public static String processMessage(String message) {
+        String[] args;
+        if (message.startsWith("OK")) {
+            return "Success!";
+        } else if (message.startsWith("ERROR")) {
+            return "Error! That didn't work...";
+        } else if (message.startsWith("MESSAGE")) {
+            args = message.split(" ");
+            return args[1] + ": " + message.substring(message.indexOf(args[2]));
+        } else if (message.startsWith("PRIVATE")) {
+            args = message.split(" ");
+            return "Private message from " + args[1] + ": " + message.substring(message.indexOf(args[2]));
+        } else if (message.startsWith("NEWNICK")) {
+            args = message.split(" ");
+            return args[1] + " changed their name to " + args[2];
+        } else if (message.startsWith("JOINED")) {
+            args = message.split(" ");
+            return args[1] + " joined the chat.";
+        } else if (message.startsWith("LEFT")) {
+            args = message.split(" ");
+            return args[1] + " left the chat.";
+        } else if (message.startsWith("STATS")) {
+            return message.substring(Math.min(6, message.length()));
+        } else if (message.startsWith("BYE")) {
+            return "You are now disconnected.";
+        } else
+            return "ERROR!";
+    }
+
+    // Reads what has arrived and prints every complete frame in it; a frame
+    // cut short waits in the framer for the rest. Returns false once the
+    // server has closed the connection.
+    public boolean readMessage() throws IOException {
+        buffer.clear();
+        if (sc.read(buffer) == -1) return false;
+        buffer.flip();
+
+        while (framer.next(buffer)) {
+            if (binary) {
+                byte[] a = framer.lineArray();
+                int offset = framer.lineOffset();
+                int length = framer.lineLength();
+                // Keepalive: an empty frame answers it
+                if (BinaryProtocol.isPing(a, offset, length)) messageQueue.offer("\n");
+                if (length > 0 && a[offset] == BinaryProtocol.BYE) token = null;
+                if (length > 0 && a[offset] == BinaryProtocol.TEXT
+                        && isToken(new String(a, offset + 1, length - 1, charset))) continue;
+                String message = processFrame(a, offset, length, nicks);
+                if (message != null) queueMessage(message + "\n");
+                continue;
+            }
+            String message = new String(framer.lineArray(), framer.lineOffset(), framer.lineLength(), charset);
+            if (upgrading) {
+                // The answer to /upgrade; what follows it is binary
+                upgrading = false;
+                binary = message.equals("OK");
+                if (binary) framer.lengthPrefixed();
+                continue;
+            }
+            if (message.equals("BYE")) token = null;
+            if (isToken(message)) continue;
+            // Keepalive: any line answers it, so send a blank one
+            if (message.equals("PING")) messageQueue.offer("\n");
+            else if (!message.isEmpty()) queueMessage(processMessage(message) + "\n");
+        }
+        return true;
+    }
+
+    // TOKEN is kept for a lost connection rather than shown
+    private boolean isToken(String message) {
+        if (!message.startsWith("TOKEN ")) return false;
+        token = message.substring(6);
+        reconnects = 0;
+        return true;
+    }
+
+    // Connects again after the connection was lost and asks for the session
+    // back; false if there is none or it has tried often enough
+    private boolean reconnect() throws IOException {
+        if (token == null || reconnects++ == reconnectAttempts) return false;
+        queueMessage("Connection lost, reconnecting...\n");
+        sc.close();
+        if (out != null) {
+            BufferPool.release(out);
+            out = null;
+        }
+        try {
+            Thread.sleep(reconnectMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        framer = new LineFramer(64 * 1024);
+        binary = false;
+        sc = connect(selector, server, port);
+        greet();
+        return true;
+    }
+
+    // What to show for a binary frame's body, or null for nothing; frames
+    // that name users and rooms only update nicks, the names behind user ids
+    static String processFrame(byte[] a, int offset, int length, Map<Integer, String> nicks) {
+        if (length == 0) return null;
+        ByteBuffer frame = ByteBuffer.wrap(a, offset + 1, length - 1);
+        switch (a[offset]) {
+            case BinaryProtocol.OK:
+                return "Success!";
+            case BinaryProtocol.ERROR:
+                return "Error! That didn't work...";
+            case BinaryProtocol.BYE:
+                return "You are now disconnected.";
+            case BinaryProtocol.MESSAGE: {
+                int id = frame.getInt();
+                return nicks.getOrDefault(id, "#" + id) + ": " + string(frame);
+            }
+            case BinaryProtocol.USER:
+                nicks.put(frame.getInt(), string(frame));
+                return null;
+            case BinaryProtocol.JOINED: {
+                int id = frame.getInt();
+                String nick = string(frame);
+                nicks.put(id, nick);
+                return nick + " joined the chat.";
+            }
+            case BinaryProtocol.LEFT:
+                return nicks.remove(frame.getInt()) + " left the chat.";
+            case BinaryProtocol.NEWNICK: {
+                int id = frame.getInt();
+                String nick = string(frame);
+                return nicks.put(id, nick) + " changed their name to " + nick;
+            }
+            case BinaryProtocol.PRIVATE: {
+                int n = frame.get() & 0xff;
+                String nick = new String(a, frame.position(), n, charset);
+                return "Private message from " + nick + ": " + string(frame.position(frame.position() + n));
+            }
+            case BinaryProtocol.ROOM:
+                // Everyone in it follows as USER frames
+                nicks.clear();
+                return null;
+            case BinaryProtocol.TEXT: {
+                String message = string(frame);
+                return message.isEmpty() || message.equals("PING") ? null : processMessage(message);
+            }
+            default:
+                return null;
+        }
+    }
+
+    // The rest of the frame as text
+    private static String string(ByteBuffer frame) {
+        return new String(frame.array(), frame.position(), frame.remaining(), charset);
+    }
+
+    // Writes queued messages until the queue is empty or the socket is full
+    private void writeMessages() throws IOException {
+        while (true) {
+            if (out == null) {
+                // Nothing but /upgrade until the server has answered it
+                if (upgrading) return;
+                String message = messageQueue.poll();
+                if (message == null) return;
+                byte[] bytes = filter(message).getBytes(charset);
+                if (binary) {
+                    ByteBuffer frame = BinaryProtocol.request(parser, bytes);
+                    if (frame == null) {
+                        queueMessage(processMessage("ERROR") + "\n");
+                        continue;
+                    }
+                    out = BufferPool.acquire(frame.remaining()).put(frame).flip();
+                } else {
+                    out = BufferPool.acquire(bytes.length).put(bytes).flip();
+                }
+            }
+            sc.write(out);
+            // The socket buffer is full; OP_WRITE will tell us when to go on
+            if (out.hasRemaining()) return;
+            BufferPool.release(out);
+            out = null;
+        }
+    }
+
+    // OP_READ always, OP_WRITE only while something waits to be written, so
+    // an idle client sleeps in select()
+    private void interest() {
+        SelectionKey key = sc.keyFor(selector);
+        if (key == null || !key.isValid() || !sc.isConnected()) return;
+        boolean pending = out != null || !upgrading && !messageQueue.isEmpty();
+        int ops = SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0);
+        if (key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    public String filter(String message) {
+        if (message.startsWith("/")) {
+            String temp = message.substring(1);
+            String[] validCommands = {"join", "leave", "nick", "priv", "bye", "stats", "history", "upgrade"};
+            for (int i = 0; i < validCommands.length; i++) {
+                if (temp.startsWith(validCommands[i]))
+                    return message;
+            }
+            return "/"+message;
+        } else
+            return message;
+    }
+
+    // Método principal do objecto
+    public void run() throws IOException {
+        try {
+            while (true) {
+                // Messages typed since the last turn arm OP_WRITE; newMessage()
+                // wakes the select up if it is already waiting
+                interest();
+                int num = selector.select();
+
+                // Woken up for a new message, or nothing happened
+                if (num == 0) {
+                    continue;
+                }
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> it = keys.iterator();
+
+                SocketChannel channel;
+
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    channel = (SocketChannel) key.channel();
+
+                    try {
+                        if (key.isConnectable()) {
+                            finishConnect(channel);
+                            key.interestOps(SelectionKey.OP_READ);
+                            continue;
+                        }
+                        if (key.isReadable() && !readMessage()) {
+                            // The server closed the connection
+                            if (!reconnect()) return;
+                            break;
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writeMessages();
+                        }
+                    } catch (IOException e) {
+                        if (!reconnect()) throw e;
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) BufferPool.release(out);
+            try {
+                if (sc != null) sc.close();
+                if (selector != null) selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    // Instancia o Client e arranca-o invocando o seu método run()
+    // * NÃO MODIFICAR *
+    public static void main(String[] args) throws IOException {
+        ChatClient client = new ChatClient(args[0], Integer.parseInt(args[1]));
+        client.run();
+    }
+
+}
\ No newline at end of file
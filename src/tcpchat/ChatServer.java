@@ -0,0 +1,920 @@
+package tcpchat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+enum States {
+    init,
+    outside,
+    inside
+}
+
+// How frames reach a user's socket: a Reactor for the selector engine, or
+// the user's own connection threads for the virtual-thread engine
+interface Transport {
+    // The user's outbound queue was empty and just got a frame
+    void wake(User user) throws IOException;
+
+    // Disconnects the user once whatever it is doing now is done
+    void close(User user);
+
+    // Last chance to send what is queued before the socket is closed
+    void drain(User user);
+
+    // The connection user came in on carries session from now on, a parked
+    // session it resumed; called on the connection's own thread
+    void handOver(User user, User session);
+
+    // Runs then on the connection's own thread once pending is done, holding
+    // back the user's later lines until it has. Called from a command; this
+    // one just blocks the thread, which only a reactor cannot afford.
+    default void await(User user, CompletableFuture<?> pending, Runnable then) {
+        pending.join();
+        then.run();
+    }
+}
+
+// A user only changes on the thread that reads its socket, but other
+// threads read its name, state and room while broadcasting.
+class User {
+    // The session id, which also names the user to binary clients
+    private final int id;
+    private volatile String name;
+    // All three change when a parked session is resumed on a new connection
+    private volatile SocketChannel socket;
+    private SelectionKey key;
+    private volatile Transport transport;
+    private OutboundQueue outbound;
+    private LineFramer framer;
+    private final RateLimit rateLimit = RateLimit.enabled ? new RateLimit() : null;
+    // Set by the reader while it holds back lines: until when, and whether
+    private long resumeInputAt;
+    private boolean inputPaused;
+    // For Timeouts, on its clock
+    private final long connectedAt = Timeouts.now();
+    private volatile long lastInput = connectedAt;
+    private long pingedAt;
+    private TimerWheel.Timer timer;
+    // Built on the first chat line after a /nick; idle users never need it
+    private volatile byte[] messagePrefix;
+    // Speaks the binary protocol; only ever set before the user has a name
+    private volatile boolean binary;
+    // 0 or 1; a field updater rather than an AtomicBoolean per connection
+    private volatile int closing;
+    private static final AtomicIntegerFieldUpdater<User> closingUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(User.class, "closing");
+    private volatile States state;
+    private volatile Room room;
+    // For /resume; null until the first /nick or while sessions are not kept
+    private volatile String token;
+    public static Map<String, User> registeredUsers = new ConcurrentHashMap<>();
+
+    User(SocketChannel s, SelectionKey k, Transport t) {
+        name = null;
+        socket = s;
+        key = k;
+        transport = t;
+        outbound = new OutboundQueue(ChatServer.outboundLimit, ChatServer.slowConsumerPolicy);
+        framer = new LineFramer(ChatServer.maxLine);
+        room = null;
+        state = States.init;
+        id = Sessions.add(this);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // Everything after the current line is read and written as BinaryProtocol
+    // frames
+    void useBinary() {
+        binary = true;
+        framer.lengthPrefixed();
+    }
+
+    SocketChannel getSocket() {
+        return socket;
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    void setToken(String token) {
+        this.token = token;
+    }
+
+    // Whether the session is waiting for a /resume, its connection gone
+    boolean isParked() {
+        return transport == Resumption.away;
+    }
+
+    // The connection is gone but the session stays. Frames sent to it queue
+    // up from now on, and what had started going out on the old socket is
+    // dropped.
+    void park(Transport away) {
+        transport = away;
+        outbound.abandon();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // Takes over the connection of from, which resumed this session
+    void takeConnection(User from) {
+        socket = from.socket;
+        key = from.key;
+        framer = from.framer;
+        lastInput = from.lastInput;
+        inputPaused = false;
+        // Last, so whoever sends to the session from now on wakes the new
+        // connection
+        transport = from.transport;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    // "MESSAGE <nick> ", kept encoded for the chat line fast path
+    byte[] getMessagePrefix() {
+        byte[] prefix = messagePrefix;
+        if (prefix == null) {
+            prefix = ("MESSAGE " + name + " ").getBytes(StandardCharsets.UTF_8);
+            messagePrefix = prefix;
+        }
+        return prefix;
+    }
+
+    LineFramer getFramer() {
+        return framer;
+    }
+
+    RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    boolean isInputPaused() {
+        return inputPaused;
+    }
+
+    long getResumeInputAt() {
+        return resumeInputAt;
+    }
+
+    void pauseInput(long until) {
+        inputPaused = true;
+        resumeInputAt = until;
+    }
+
+    void resumeInput() {
+        inputPaused = false;
+    }
+
+    long getConnectedAt() {
+        return connectedAt;
+    }
+
+    long getLastInput() {
+        return lastInput;
+    }
+
+    // Called by the reader whenever the client sends something
+    void touch() {
+        lastInput = Timeouts.now();
+    }
+
+    long getPingedAt() {
+        return pingedAt;
+    }
+
+    void setPingedAt(long at) {
+        pingedAt = at;
+    }
+
+    TimerWheel.Timer getTimer() {
+        return timer;
+    }
+
+    void setTimer(TimerWheel.Timer timer) {
+        this.timer = timer;
+    }
+
+    boolean isClosing() {
+        return closing != 0;
+    }
+
+    // Returns true only for the first caller, so a user is closed once
+    boolean markClosing() {
+        return closingUpdater.compareAndSet(this, 0, 1);
+    }
+
+    States getState() {
+        return state;
+    }
+
+    Room getRoom() {
+        return room;
+    }
+
+    String getRoomName() {
+        Room r = room;
+        return r == null ? null : r.getName();
+    }
+
+    String changeName(String newName) throws Exception {
+        // Claiming the name in the map is what makes nicks unique across threads;
+        // in a cluster ChatServer.nick has had the nick's owner node agree first
+        if (registeredUsers.putIfAbsent(newName, this) != null) {
+            throw new Exception("User name already exists");
+        }
+        String aux = name;
+        name = newName;
+        messagePrefix = null;
+        if (aux != null) {
+            if (registeredUsers.remove(aux, this) && Cluster.enabled) Cluster.release(aux);
+        }
+        if (state == States.init) state = States.outside;
+        return aux; // Can return NULL or the previous name if the user has already picked one before.
+    }
+
+    void join(Room room) throws Exception {
+        if (state == States.init) {
+            throw new Exception("Username not initialized");
+        }
+        this.room = room;
+        state = States.inside;
+    }
+
+    void leave() throws Exception {
+        if (state != States.inside) {
+            throw new Exception("User not in a room");
+        }
+        room = null;
+        state = States.outside;
+    }
+
+    void remove() throws Exception {
+        if (state == States.inside)
+            room.disconnect(this);
+        if (name != null) {
+            if (registeredUsers.remove(name, this) && Cluster.enabled) Cluster.release(name);
+        }
+        if (Sessions.remove(id, this)) Metrics.closed.increment();
+        // Best effort to get the last frames (e.g. BYE) out before closing
+        transport.drain(this);
+        outbound.clear();
+        socket.close();
+    }
+}
+
+// Members join and leave from any thread in O(1); broadcasts iterate the
+// member set without locking and see every user that stays in the room
+// exactly once. A room is dropped from the map once it is empty, after
+// chat.roomGraceMillis if that is set.
+class Room {
+    private static final AtomicInteger ids = new AtomicInteger();
+    private final int id = ids.incrementAndGet();
+    private String name;
+    private Set<User> users;
+    // Members that speak the binary protocol; while there are none, nothing
+    // sent to the room is encoded for them
+    private final AtomicInteger binaryUsers = new AtomicInteger();
+    private volatile long emptySince;
+    public static Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    static final long graceMillis = Long.getLong("chat.roomGraceMillis", 0);
+    private static ScheduledExecutorService timer;
+
+    // With chat.batchMicros set, chat lines sent to a room within that window
+    // are joined into one frame, so each member gets one queued frame and
+    // one write per window instead of one per line
+    static final long batchMicros = Long.getLong("chat.batchMicros", 0);
+    static final int batchBytes = 16 * 1024;
+    private byte[] batch;
+    private int batchLength;
+    private int batchLines;
+    // The same lines for binary members; null if some line had no binary
+    // form, in which case the text batch is wrapped for them
+    private byte[] binaryBatch;
+    private int binaryBatchLength;
+
+    Room(String name) {
+        this.name = name;
+        users = ConcurrentHashMap.newKeySet();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean hasBinaryUsers() {
+        return binaryUsers.get() > 0;
+    }
+
+    int getNUsers() {
+        return users.size();
+    }
+
+    Set<User> getUsers() {
+        return users;
+    }
+
+    void disconnect(User user) throws Exception {
+        user.leave();
+        if (users.remove(user) && user.isBinary()) binaryUsers.decrementAndGet();
+        if (users.isEmpty()) emptied();
+    }
+
+    // Moves the user into the named room, creating it if needed. The member
+    // is added inside the map's compute, so it cannot race with an eviction.
+    static Room connect(String name, User user) throws Exception {
+        if (user.getState() == States.init) {
+            throw new Exception("Username not initialized");
+        }
+        if (user.getState() == States.inside)
+            user.getRoom().disconnect(user);
+        boolean[] created = new boolean[1];
+        Room room = rooms.compute(name, (k, r) -> {
+            if (r == null) {
+                r = new Room(k);
+                created[0] = true;
+            }
+            if (r.users.add(user) && user.isBinary()) r.binaryUsers.incrementAndGet();
+            return r;
+        });
+        user.join(room);
+        if (created[0] && Cluster.enabled) Cluster.interest(name);
+        if (created[0] && History.enabled) History.open(name);
+        return room;
+    }
+
+    private void emptied() {
+        if (graceMillis <= 0) {
+            evict();
+            return;
+        }
+        emptySince = System.nanoTime();
+        timer().schedule(this::evict, graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Drops the room if it is still empty and has been for the grace period
+    private void evict() {
+        Room left = rooms.computeIfPresent(name, (k, r) -> {
+            if (r != this || !users.isEmpty()) return r;
+            if (graceMillis > 0 && System.nanoTime() - emptySince < TimeUnit.MILLISECONDS.toNanos(graceMillis)) return r;
+            return null;
+        });
+        if (left == null && Cluster.enabled) Cluster.interest(name);
+    }
+
+    // Adds a frame, and its binary form if there is one, to the room's
+    // batch. The first frame of a batch starts the window; a batch that
+    // would outgrow batchBytes goes out early.
+    synchronized void batch(ByteBuffer frame, ByteBuffer binary) {
+        int size = frame.remaining();
+        if (batch != null && (batchLength + size > batch.length
+                || binaryBatch != null && binary != null && binaryBatchLength + binary.remaining() > binaryBatch.length)) {
+            flushBatch();
+        }
+        if (batch == null) {
+            batch = new byte[Math.max(batchBytes, size)];
+            if (binary != null) binaryBatch = new byte[Math.max(batchBytes, binary.remaining())];
+            timer().schedule(this::flushBatch, batchMicros, TimeUnit.MICROSECONDS);
+        }
+        frame.duplicate().get(batch, batchLength, size);
+        batchLength += size;
+        batchLines++;
+        if (binaryBatch != null) {
+            if (binary == null) {
+                binaryBatch = null;
+            } else {
+                binary.duplicate().get(binaryBatch, binaryBatchLength, binary.remaining());
+                binaryBatchLength += binary.remaining();
+            }
+        }
+    }
+
+    // Sends whatever is batched. Holding the room's lock while delivering
+    // keeps batches in order.
+    synchronized void flushBatch() {
+        if (batch == null) return;
+        ByteBuffer frame = ByteBuffer.wrap(batch, 0, batchLength).asReadOnlyBuffer();
+        ByteBuffer binary = binaryBatch == null ? null : ByteBuffer.wrap(binaryBatch, 0, binaryBatchLength).asReadOnlyBuffer();
+        int lines = batchLines;
+        batch = null;
+        batchLength = 0;
+        batchLines = 0;
+        binaryBatch = null;
+        binaryBatchLength = 0;
+        ChatServer.deliver(this, frame, binary, lines, null);
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "room-timer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return timer;
+    }
+}
+
+public class ChatServer {
+    // Encoding for all text on the wire -- assume UTF-8
+    static final Charset charset = Charset.forName("UTF8");
+
+    // "nio" for the selector engine, "virtual" for one virtual thread per connection
+    static final String engine = System.getProperty("chat.engine", "nio");
+
+    // Connections the OS queues before accept(); thousands of clients may
+    // connect at once after a restart or under a load test
+    static final int backlog = Integer.getInteger("chat.backlog", 1024);
+
+    // Local port for the plain-text stats page; 0 leaves it off
+    static final int statsPort = Integer.getInteger("chat.statsPort", 0);
+
+    // Number of selector threads; accepting runs on a thread of its own
+    static final int reactorCount = Integer.getInteger("chat.reactors", Runtime.getRuntime().availableProcessors());
+
+    // Longest line a client may send, in bytes; longer ones get it disconnected
+    static final int maxLine = Integer.getInteger("chat.maxLine", 4096);
+
+    // Per-connection outbound queue size in bytes and what to do once it is full
+    static final int outboundLimit = Integer.getInteger("chat.outboundLimit", 256 * 1024);
+    static final SlowConsumerPolicy slowConsumerPolicy =
+            SlowConsumerPolicy.valueOf(System.getProperty("chat.slowConsumer", "dropOldest"));
+
+    // Encodes a frame once, with the newline that ends every frame. The result
+    // is read-only and is never written to through; each recipient gets its
+    // own view of it with send().
+    static ByteBuffer encode(String message) {
+        return ByteBuffer.wrap((message + "\n").getBytes(charset)).asReadOnlyBuffer();
+    }
+
+    public static void sendMessage(String message, User user) throws IOException {
+        send(user.isBinary() ? BinaryProtocol.reply(message) : encode(message), user);
+        Log.sampled("Message sent: {}", message);
+    }
+
+    // Queues an encoded frame for one user, from any thread. Only a view with
+    // its own position is queued, so the same frame can be shared by a whole
+    // room.
+    static void send(ByteBuffer frame, User user) throws IOException {
+        if (user == null || user.getSocket() == null || user.isClosing()) return;
+        // A parked session keeps what it is sent for when it is resumed
+        if (!user.getSocket().isOpen() && !user.isParked()) return;
+        OutboundQueue outbound = user.getOutbound();
+        int offered = outbound.offer(frame.duplicate());
+        if (offered == OutboundQueue.DROPPED) Events.outboundBacklog(user, "dropped");
+        if (offered == OutboundQueue.REJECTED) {
+            Events.outboundBacklog(user, "disconnected");
+            Log.warn("Slow consumer {}: {}", user.getName(), outbound);
+            user.getTransport().close(user);
+            return;
+        }
+        // Nothing was waiting, so whoever writes to this socket must be told
+        if (offered == OutboundQueue.FIRST) {
+            user.getTransport().wake(user);
+        }
+    }
+
+    public static void broadcast(String message, User user) {
+        fanOut(encode(message), null, user, null);
+        Log.sampled("Message sent: {}", message);
+    }
+
+    public static void broadcastToRest(String message, User user) {
+        broadcastToRest(message, null, user);
+    }
+
+    // The same, with the frame binary members get instead of the text wrapped
+    static void broadcastToRest(String message, ByteBuffer binary, User user) {
+        fanOut(encode(message), binary, user, user);
+        Log.sampled("Message sent: {}", message);
+    }
+
+    // Whether anyone in the user's room needs binary frames
+    private static boolean binaryAudience(User user) {
+        Room room = user.getRoom();
+        return room != null && room.hasBinaryUsers();
+    }
+
+    // Tells the rest of the user's room that it is leaving
+    static void announceLeft(User user) {
+        broadcastToRest("LEFT " + user.getName(), binaryAudience(user) ? BinaryProtocol.left(user) : null, user);
+    }
+
+    // Sends an encoded frame to everyone in the user's room but skip. The
+    // same frame is shared by every recipient, whatever the size of the room;
+    // binary members share binary, or the frame wrapped as TEXT if it is null.
+    private static void fanOut(ByteBuffer frame, ByteBuffer binary, User user, User skip) {
+        Room room = user.getRoom();
+        if (room == null) return;
+        Metrics.broadcasts.increment();
+        if (Cluster.enabled) Cluster.relay(room.getName(), frame);
+        if (Room.batchMicros > 0) {
+            if (skip == null) {
+                room.batch(frame, binary);
+                return;
+            }
+            // Whatever is batched was said first
+            room.flushBatch();
+        }
+        deliver(room, frame, binary, 1, skip);
+    }
+
+    // Sends a frame holding the given number of lines to the room, and its
+    // binary form to binary members; without one, it is made when first
+    // needed. FanOut splits large rooms over several threads.
+    static void deliver(Room room, ByteBuffer frame, ByteBuffer binary, int lines, User skip) {
+        Events.Broadcast event = Events.broadcast();
+        int recipients = FanOut.deliver(room, frame, binary, skip);
+        Metrics.fanOut.record(recipients);
+        Metrics.delivered.add((long) recipients * lines);
+        if (event != null && event.shouldCommit()) {
+            event.room = room.getName();
+            event.members = room.getNUsers();
+            event.recipients = recipients;
+            event.lines = lines;
+            event.bytes = frame.remaining();
+            event.commit();
+        }
+    }
+
+    public static void reply(String message, User user) {
+        try {
+            sendMessage(message, user);
+        } catch (IOException e) {
+            Log.warn("{}", e.getMessage());
+        }
+    }
+
+    // Valid commands
+    public static void join(String roomName, User user) {
+        if (user.getState() == States.inside) {
+            announceLeft(user);
+        }
+        try {
+            Room room = Room.connect(roomName, user);
+            // A binary client learns the room's id and who is in it, itself
+            // included
+            if (user.isBinary()) {
+                send(BinaryProtocol.room(room), user);
+                for (User u : room.getUsers()) {
+                    if (u.getName() != null) send(BinaryProtocol.user(BinaryProtocol.USER, u), user);
+                }
+            }
+            reply("OK", user);
+            broadcastToRest("JOINED " + user.getName(),
+                    binaryAudience(user) ? BinaryProtocol.user(BinaryProtocol.JOINED, user) : null, user);
+        } catch (Exception e) {
+            reply("ERROR", user);
+        }
+    }
+
+    public static void leave(User user) {
+        if (user.getState() != States.inside) {
+            reply("ERROR", user);
+            return;
+        }
+        announceLeft(user);
+        try {
+            user.getRoom().disconnect(user);
+            reply("OK", user);
+        } catch (Exception e) {
+            reply("ERROR", user);
+        }
+    }
+
+    public static void nick(String name, User user) {
+        if (name.getBytes(charset).length > BinaryProtocol.maxNick) {
+            reply("ERROR", user);
+            return;
+        }
+        if (!Cluster.enabled) {
+            nick(name, user, true);
+            return;
+        }
+        // The nick's owner node has to agree first. When that is another
+        // node, the user's next lines wait for its answer, not the thread.
+        CompletableFuture<Boolean> claim = Cluster.claim(name);
+        if (claim.isDone()) nick(name, user, claim.join());
+        else user.getTransport().await(user, claim, () -> nick(name, user, claim.join()));
+    }
+
+    // Takes the nick, once the cluster has granted it if there is one
+    private static void nick(String name, User user, boolean granted) {
+        if (user.isClosing() || !user.getSocket().isOpen() && !user.isParked()) {
+            // Gone while the owner was asked
+            if (granted && Cluster.enabled) Cluster.release(name);
+            return;
+        }
+        if (!granted) {
+            reply("ERROR", user);
+            return;
+        }
+        try {
+            String oldName = user.changeName(name);
+            // A binary client learns its own id, which its MESSAGE frames carry
+            if (user.isBinary()) send(BinaryProtocol.user(BinaryProtocol.USER, user), user);
+            String token = Resumption.issue(user);
+            if (token != null) reply("TOKEN " + token, user);
+            reply("OK", user);
+            Inbox.deliver(user);
+            if (Cluster.enabled) Cluster.taken(name);
+            if (user.getState() == States.inside) {
+                broadcastToRest("NEWNICK " + oldName + " " + name,
+                        binaryAudience(user) ? BinaryProtocol.user(BinaryProtocol.NEWNICK, user) : null, user);
+            }
+        } catch (Exception e) {
+            reply("ERROR", user);
+        }
+
+    }
+
+    public static void bye(User user) {
+        if (user.getState() == States.inside) {
+            try {
+                announceLeft(user);
+                user.getRoom().disconnect(user);
+            } catch (Exception e) {
+                Log.warn("{}", e.getMessage());
+            }
+        }
+        reply("BYE", user);
+        try {
+            user.remove();
+            user = null;
+        } catch (IOException e) {
+            Log.warn("{}", e.getMessage());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void message(String message, User user) {
+        byte[] text = message.getBytes(charset);
+        message(text, 0, text.length, user);
+    }
+
+    // Chat lines are the hot path: the frame is built straight from the bytes
+    // of the line and the user's cached "MESSAGE <nick> " prefix
+    static void message(byte[] line, int offset, int length, User user) {
+        if (user.getState() != States.inside) {
+            reply("ERROR", user);
+            return;
+        }
+        byte[] prefix = user.getMessagePrefix();
+        byte[] frame = Arrays.copyOf(prefix, prefix.length + length + 1);
+        System.arraycopy(line, offset, frame, prefix.length, length);
+        frame[frame.length - 1] = '\n';
+        ByteBuffer encoded = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        Room room = user.getRoom();
+        ByteBuffer binary = room != null && room.hasBinaryUsers() ? BinaryProtocol.message(user, line, offset, length) : null;
+        fanOut(encoded, binary, user, null);
+        if (History.enabled && room != null) History.append(room.getName(), encoded);
+    }
+
+    public static void priv(String message,  String receiver, User user) {
+        User uReceiver = User.registeredUsers.get(receiver);
+        if (user.getState() == States.init) {
+            reply("ERROR", user);
+        } else if (uReceiver != null && Inbox.holds(receiver) && Inbox.offer(receiver, user.getName(), message)) {
+            // Behind the backlog the receiver is still being given
+            reply("OK", user);
+        } else if (uReceiver != null) {
+            if (uReceiver.isBinary()) {
+                try {
+                    send(BinaryProtocol.privateMessage(user.getName(), message), uReceiver);
+                } catch (IOException e) {
+                    Log.warn("{}", e.getMessage());
+                }
+            } else {
+                reply("PRIVATE " + user.getName() + " " + message, uReceiver);
+            }
+            reply("OK", user);
+        } else if (Cluster.enabled) {
+            // On another node, or kept by the nick's owner until someone takes
+            // it. Asking the owner may take a round trip; the user's next
+            // lines wait for the answer.
+            CompletableFuture<Boolean> routed = Cluster.route(receiver, encode("PRIVATE " + user.getName() + " " + message));
+            Runnable then = () -> reply(routed.join() ? "OK" : "ERROR", user);
+            if (routed.isDone()) then.run();
+            else user.getTransport().await(user, routed, then);
+        } else if (Inbox.offer(receiver, user.getName(), message)) {
+            // Kept until someone takes the nick
+            reply("OK", user);
+        } else {
+            reply("ERROR", user);
+        }
+    }
+
+    // Replays the last n messages of the user's room, then OK
+    public static void history(String n, User user) {
+        int count;
+        try {
+            count = Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            count = 0;
+        }
+        history(count, user);
+    }
+
+    static void history(int count, User user) {
+        Room room = user.getRoom();
+        if (!History.enabled || room == null || count <= 0) {
+            reply("ERROR", user);
+            return;
+        }
+        try {
+            for (ByteBuffer frame : History.last(room.getName(), count)) {
+                send(user.isBinary() ? BinaryProtocol.text(frame) : frame, user);
+            }
+        } catch (IOException e) {
+            Log.warn("History of {}: {}", room.getName(), e);
+            reply("ERROR", user);
+            return;
+        }
+        reply("OK", user);
+    }
+
+    // Switches the user to the binary protocol; only before /nick, so every
+    // frame it has been sent so far was a reply to it
+    public static void upgrade(String protocol, User user) {
+        if (!protocol.equals("binary") || user.getState() != States.init || user.isBinary()) {
+            reply("ERROR", user);
+            return;
+        }
+        reply("OK", user);
+        user.useBinary();
+    }
+
+    // Takes back a session whose connection was lost; see Resumption
+    public static void resume(String token, User user) {
+        if (!Resumption.enabled) {
+            reply("ERROR", user);
+            return;
+        }
+        Resumption.resume(token, user);
+    }
+
+    // Server metrics, for operators connected from the server's own machine
+    public static void stats(User user) {
+        InetAddress address = user.getSocket().socket().getInetAddress();
+        if (address == null || !address.isLoopbackAddress()) {
+            reply("ERROR", user);
+            return;
+        }
+        for (String line : Metrics.report().split("\n")) {
+            reply("STATS " + line, user);
+        }
+    }
+
+    interface CommandHandler {
+        void handle(CommandParser p, User user) throws Exception;
+    }
+
+    // Indexed by CommandParser command id
+    private static final CommandHandler[] handlers = {
+            (p, u) -> message(p.line(), p.bodyStart(), p.bodyLength(), u),
+            (p, u) -> {
+                if (p.hasArg()) nick(p.arg(), u);
+                else reply("ERROR", u);
+            },
+            (p, u) -> {
+                if (p.hasArg()) join(p.arg(), u);
+                else reply("ERROR", u);
+            },
+            (p, u) -> leave(u),
+            (p, u) -> bye(u),
+            (p, u) -> {
+                if (p.hasArg() && p.hasRest()) priv(p.rest(), p.arg(), u);
+                else reply("ERROR", u);
+            },
+            (p, u) -> stats(u),
+            (p, u) -> {
+                if (p.hasArg()) history(p.arg(), u);
+                else reply("ERROR", u);
+            },
+            (p, u) -> {
+                if (p.hasArg()) upgrade(p.arg(), u);
+                else reply("ERROR", u);
+            },
+            (p, u) -> {
+                if (p.hasArg()) resume(p.arg(), u);
+                else reply("ERROR", u);
+            },
+    };
+
+    // Runs one line received from a user; line[offset, offset + length) is
+    // parsed in place by p. For a binary user it is a frame's body instead.
+    static void commands(CommandParser p, byte[] line, int offset, int length, User user) throws Exception {
+        Events.Command event = Events.command();
+        int command;
+        if (user.isBinary()) {
+            command = BinaryProtocol.commandOf(line, offset, length);
+            BinaryProtocol.command(line, offset, length, user);
+        } else {
+            command = p.parse(line, offset, offset + length);
+            if (command != CommandParser.EMPTY) {
+                starting(command, user);
+                handlers[command].handle(p, user);
+            }
+        }
+        if (event != null && command != CommandParser.EMPTY && event.shouldCommit()) {
+            event.command = Metrics.commandNames[command];
+            event.payload = length;
+            event.user = user.getName();
+            event.room = user.getRoomName();
+            event.commit();
+        }
+    }
+
+    // Counts a command about to run
+    static void starting(int command, User user) {
+        Metrics.lines[command].increment();
+        // Lines the user already said go out before anything else it does
+        Room room = user.getRoom();
+        if (Room.batchMicros > 0 && command != CommandParser.MESSAGE && room != null) room.flushBatch();
+    }
+
+    public static void commands(String line, User user) throws Exception {
+        byte[] bytes = line.getBytes(charset);
+        commands(new CommandParser(), bytes, 0, bytes.length, user);
+    }
+
+    static public void main(String args[]) throws Exception {
+        // Parse port from command line
+        int port = Integer.parseInt(args[0]);
+
+        try {
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            ssc.socket().bind(new InetSocketAddress(port), backlog);
+            if (statsPort > 0) Metrics.serve(statsPort);
+            if (History.enabled) History.start();
+            if (Cluster.enabled) Cluster.start();
+
+            if (engine.equals("virtual")) {
+                Log.info("Listening on port {} with a virtual thread per connection", port);
+                VirtualThreadServer.serve(ssc);
+                return;
+            }
+
+            // The acceptor blocks in accept() on this thread and hands every new
+            // connection to one of the reactors, round-robin
+            Reactor[] reactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(i);
+                reactors[i].start();
+            }
+            Log.info("Listening on port {} with {} reactors", port, reactors.length);
+
+            int next = 0;
+            while (true) {
+                SocketChannel sc = ssc.accept();
+                Metrics.accepted.increment();
+                // Not sc.socket(), which would keep an adaptor for every connection
+                Log.info("Got connection from {}", sc.getRemoteAddress());
+
+                // Make sure to make it non-blocking, so we can use a selector
+                // on it.
+                sc.configureBlocking(false);
+                reactors[next].register(sc);
+                next = (next + 1) % reactors.length;
+            }
+        } catch (IOException ie) {
+            Log.error("{}", ie);
+        }
+    }
+}
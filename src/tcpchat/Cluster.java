@@ -0,0 +1,453 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Joins several servers into one chat. Every node has a TCP link to every
+// other one, and a room's traffic is relayed over them once per node that
+// has members in that room, whatever the number of members there. Every
+// nick has an owner node, picked by hashing it over the configured nodes;
+// the owner decides who may take it and knows where its holder is, so nicks
+// are unique over the cluster and /priv reaches the right node in at most
+// two hops. A /priv for a nick nobody holds is kept in the owner's Inbox,
+// and goes to whichever node takes the nick next. Claims for a nick whose
+// owner cannot be reached fail rather than risk a duplicate.
+//
+// Each node is started with the same node list and its own address in it:
+//
+//   java -Dchat.cluster.nodes=127.0.0.1:7001,127.0.0.1:7002 -Dchat.cluster.self=127.0.0.1:7001 tcpchat.ChatServer 8001
+//   java -Dchat.cluster.nodes=127.0.0.1:7001,127.0.0.1:7002 -Dchat.cluster.self=127.0.0.1:7002 tcpchat.ChatServer 8002
+//
+// Nodes talk in lines:
+//   HELLO <node>              first line on a link
+//   SUB <room> / UNSUB <room> the sender has, or no longer has, members in the room
+//   ROOM <room> <frame>       a frame for the room's members
+//   CLAIM <id> <nick>         ask the owner for a nick; answered CLAIMED <id> 1 or 0
+//   HOLD <nick>               the sender holds the nick (sent to an owner that restarted)
+//   RELEASE <nick>            the sender no longer holds the nick
+//   TAKEN <nick>              the sender's user has the nick now; the owner sends what it kept for it
+//   PRIV <id> <nick> <frame>  a frame for one user, sent to the nick's owner, which
+//                             answers DELIVERED <id> 1 or 0; id 0 wants no answer
+class Cluster {
+    static final String self = System.getProperty("chat.cluster.self", "");
+    static final boolean enabled = !self.isEmpty();
+    private static final String[] nodes = nodes();
+
+    // How long a /nick waits for a remote owner's answer
+    static final long claimMillis = Long.getLong("chat.cluster.claimMillis", 2000);
+    // How much a link may have queued before it is reset
+    static final int linkLimit = Integer.getInteger("chat.cluster.linkLimit", 16 * 1024 * 1024);
+
+    private static final Map<String, Link> links = new ConcurrentHashMap<>();
+    // Nicks this node owns -> the node holding each
+    private static final Map<String, String> owned = new ConcurrentHashMap<>();
+    // CLAIMs and PRIVs waiting for their answer, by id
+    private static final Map<Long, CompletableFuture<Boolean>> answers = new ConcurrentHashMap<>();
+    private static final AtomicLong ids = new AtomicLong();
+
+    // For the server stats
+    static final LongAdder relayedOut = new LongAdder();
+    static final LongAdder relayedIn = new LongAdder();
+
+    private static String[] nodes() {
+        String[] all = System.getProperty("chat.cluster.nodes", self).split(",");
+        for (int i = 0; i < all.length; i++) all[i] = all[i].trim();
+        Arrays.sort(all);
+        return all;
+    }
+
+    static void start() throws IOException {
+        if (Arrays.binarySearch(nodes, self) < 0) throw new IllegalArgumentException(self + " is not in chat.cluster.nodes");
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(address(self));
+        Thread.ofPlatform().daemon().name("cluster-accept").start(() -> accept(ssc));
+        // One link per pair of nodes: the one that sorts first dials
+        for (String node : nodes) {
+            if (node.compareTo(self) > 0) Thread.ofPlatform().daemon().name("cluster-dial-" + node).start(() -> dial(node));
+        }
+        Log.info("Cluster node {} of {}", self, Arrays.toString(nodes));
+    }
+
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    static String owner(String nick) {
+        return nodes[Math.floorMod(nick.hashCode(), nodes.length)];
+    }
+
+    private static void accept(ServerSocketChannel ssc) {
+        while (true) {
+            try {
+                SocketChannel sc = ssc.accept();
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        run(sc, null);
+                    } catch (IOException e) {
+                        Log.warn("Cluster link from {}: {}", sc.socket(), e.getMessage());
+                    }
+                });
+            } catch (IOException e) {
+                Log.error("Cluster accept: {}", e);
+                return;
+            }
+        }
+    }
+
+    // Keeps a link to node up, redialling a second after it drops
+    private static void dial(String node) {
+        while (true) {
+            try {
+                SocketChannel sc = SocketChannel.open(address(node));
+                run(sc, node);
+            } catch (IOException e) {
+                Log.debug("Cluster link to {}: {}", node, e.getMessage());
+            }
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // Runs one link on the calling thread until it drops. The dialling side
+    // knows the peer; the accepting side learns it from HELLO.
+    private static void run(SocketChannel sc, String peer) throws IOException {
+        sc.socket().setTcpNoDelay(true);
+        Link link = new Link(sc);
+        link.start();
+        link.send("HELLO " + self);
+        ByteBuffer buffer = BufferPool.acquire(64 * 1024);
+        LineFramer framer = new LineFramer(64 * 1024);
+        try {
+            while (sc.read(buffer) != -1) {
+                buffer.flip();
+                while (framer.next(buffer)) {
+                    String[] hello = null;
+                    if (link.peer == null) {
+                        hello = new String(framer.lineArray(), framer.lineOffset(), framer.lineLength(),
+                                StandardCharsets.UTF_8).split(" ");
+                        if (hello.length != 2 || !hello[0].equals("HELLO") || peer != null && !peer.equals(hello[1]))
+                            throw new ProtocolException("Bad hello");
+                        up(link, hello[1]);
+                        continue;
+                    }
+                    handle(link, framer.lineArray(), framer.lineOffset(), framer.lineLength());
+                }
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.release(buffer);
+            down(link);
+        }
+    }
+
+    private static void up(Link link, String peer) {
+        link.peer = peer;
+        Link old = links.put(peer, link);
+        if (old != null) old.close();
+        Log.info("Cluster link to {} up", peer);
+        // Tell it which rooms we have members in, and which of its nicks we hold
+        for (String room : Room.rooms.keySet()) link.send("SUB " + room);
+        for (String nick : User.registeredUsers.keySet()) {
+            if (owner(nick).equals(peer)) link.send("HOLD " + nick);
+        }
+    }
+
+    private static void down(Link link) {
+        link.close();
+        if (link.peer == null || !links.remove(link.peer, link)) return;
+        // Its users are gone, and it no longer answers for the nicks it owns
+        owned.entrySet().removeIf(e -> e.getValue().equals(link.peer));
+        Log.info("Cluster link to {} down", link.peer);
+    }
+
+    private static void handle(Link link, byte[] a, int off, int len) {
+        int end = off + len;
+        int sp1 = indexOf(a, off, end);
+        int sp2 = indexOf(a, sp1 + 1, end);
+        String verb = new String(a, off, sp1 - off, StandardCharsets.US_ASCII);
+        String arg = new String(a, sp1 + 1, Math.max(0, sp2 - sp1 - 1), StandardCharsets.UTF_8);
+        switch (verb) {
+            case "ROOM" -> {
+                relayedIn.increment();
+                Room room = Room.rooms.get(arg);
+                ByteBuffer frame = frame(a, sp2 + 1, end);
+                if (room != null) ChatServer.deliver(room, frame, null, 1, null);
+                if (History.enabled && startsWith(a, sp2 + 1, end, "MESSAGE ")) History.append(arg, frame);
+            }
+            case "SUB" -> link.rooms.add(arg);
+            case "UNSUB" -> link.rooms.remove(arg);
+            case "CLAIM" -> {
+                String nick = new String(a, sp2 + 1, end - sp2 - 1, StandardCharsets.UTF_8);
+                boolean granted = owned.putIfAbsent(nick, link.peer) == null;
+                link.send("CLAIMED " + arg + (granted ? " 1" : " 0"));
+            }
+            case "CLAIMED", "DELIVERED" -> {
+                CompletableFuture<Boolean> answer = answers.remove(Long.parseLong(arg));
+                if (answer != null) answer.complete(a[end - 1] == '1');
+            }
+            case "HOLD" -> {
+                String holder = owned.putIfAbsent(arg, link.peer);
+                if (holder != null && !holder.equals(link.peer)) Log.warn("Nick {} held by two nodes: {}", arg, holder + " and " + link.peer);
+            }
+            case "RELEASE" -> owned.remove(arg, link.peer);
+            case "TAKEN" -> {
+                if (link.peer.equals(owned.get(arg))) Inbox.deliver(arg, link.peer);
+            }
+            case "PRIV" -> {
+                int sp3 = indexOf(a, sp2 + 1, end);
+                String nick = new String(a, sp2 + 1, sp3 - sp2 - 1, StandardCharsets.UTF_8);
+                boolean delivered = priv(nick, frame(a, sp3 + 1, end));
+                if (!arg.equals("0")) link.send("DELIVERED " + arg + (delivered ? " 1" : " 0"));
+            }
+            default -> Log.warn("Cluster link to {}: unknown {}", link.peer, verb);
+        }
+    }
+
+    private static ByteBuffer frame(byte[] a, int from, int to) {
+        byte[] frame = Arrays.copyOfRange(a, from, to + 1);
+        frame[frame.length - 1] = '\n';
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    // Sends a room's frame to every node with members in it. The relayed line
+    // is built once and shared by all the links.
+    static void relay(String room, ByteBuffer frame) {
+        ByteBuffer line = null;
+        for (Link link : links.values()) {
+            if (!link.rooms.contains(room)) continue;
+            if (line == null) line = prefixed("ROOM " + room + " ", frame);
+            link.send(line);
+            relayedOut.increment();
+        }
+    }
+
+    // Tells every node whether we have members in the room. It is read from
+    // the room map while holding the lock, so whichever of a quick evict and
+    // re-create reports last reports the truth.
+    static synchronized void interest(String room) {
+        String line = (Room.rooms.containsKey(room) ? "SUB " : "UNSUB ") + room;
+        for (Link link : links.values()) link.send(line);
+    }
+
+    // Takes the nick for a user of this node. With a remote owner the answer
+    // comes from its link's thread, or as false after claimMillis; it is
+    // done right away otherwise.
+    static CompletableFuture<Boolean> claim(String nick) {
+        String owner = owner(nick);
+        if (owner.equals(self)) return CompletableFuture.completedFuture(owned.putIfAbsent(nick, self) == null);
+        Link link = links.get(owner);
+        if (link == null) return CompletableFuture.completedFuture(false);
+        long id = ids.incrementAndGet();
+        CompletableFuture<Boolean> claim = new CompletableFuture<>();
+        answers.put(id, claim);
+        link.send("CLAIM " + id + " " + nick);
+        return claim.completeOnTimeout(false, claimMillis, TimeUnit.MILLISECONDS).whenComplete((granted, e) -> {
+            // Too late; if the owner says yes after all, give it back
+            if (answers.remove(id) != null) link.send("RELEASE " + nick);
+        });
+    }
+
+    // A user of this node has just taken the nick; the owner, if another
+    // node, sends it what was kept for the nick
+    static void taken(String nick) {
+        String owner = owner(nick);
+        if (owner.equals(self)) return;
+        Link link = links.get(owner);
+        if (link != null) link.send("TAKEN " + nick);
+    }
+
+    // The node holding a nick this node owns, if any
+    static String holder(String nick) {
+        return owned.get(nick);
+    }
+
+    // Whether the link to node is gone or has over half its limit queued
+    static boolean busy(String node) {
+        Link link = links.get(node);
+        return link == null || link.outbound.getBytes() > linkLimit / 2;
+    }
+
+    // Sends an inbox record, "<from> <message>", as a PRIVATE frame to the
+    // node holding nick; false if there is no link to it
+    static boolean forward(String node, String nick, byte[] record) {
+        Link link = links.get(node);
+        if (link == null) return false;
+        byte[] head = ("PRIV 0 " + nick + " PRIVATE ").getBytes(StandardCharsets.UTF_8);
+        byte[] line = Arrays.copyOf(head, head.length + record.length + 1);
+        System.arraycopy(record, 0, line, head.length, record.length);
+        line[line.length - 1] = '\n';
+        link.send(ByteBuffer.wrap(line).asReadOnlyBuffer());
+        return true;
+    }
+
+    static void release(String nick) {
+        String owner = owner(nick);
+        if (owner.equals(self)) {
+            owned.remove(nick, self);
+            return;
+        }
+        Link link = links.get(owner);
+        if (link != null) link.send("RELEASE " + nick);
+    }
+
+    // Sends a private frame for a nick nobody here holds through the nick's
+    // owner, which passes it on to the node holding it or keeps it until
+    // someone takes the nick. The answer is false if the owner could do
+    // neither, cannot be reached or does not answer within claimMillis.
+    static CompletableFuture<Boolean> route(String nick, ByteBuffer frame) {
+        String owner = owner(nick);
+        if (owner.equals(self)) return CompletableFuture.completedFuture(priv(nick, frame));
+        Link link = links.get(owner);
+        if (link == null) return CompletableFuture.completedFuture(false);
+        long id = ids.incrementAndGet();
+        CompletableFuture<Boolean> delivered = new CompletableFuture<>();
+        answers.put(id, delivered);
+        link.send(prefixed("PRIV " + id + " " + nick + " ", frame));
+        return delivered.completeOnTimeout(false, claimMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((done, e) -> answers.remove(id));
+    }
+
+    // A private frame that reached this node: delivers it here, behind what
+    // the inbox is still giving the user; or, if we own the nick, passes it
+    // on to the holder or keeps it. False if it could do none of these.
+    private static boolean priv(String nick, ByteBuffer frame) {
+        User user = User.registeredUsers.get(nick);
+        if (user != null && !Inbox.holds(nick)) {
+            try {
+                ChatServer.send(user.isBinary() ? BinaryProtocol.text(frame) : frame, user);
+            } catch (IOException e) {
+                Log.warn("{}", e.getMessage());
+            }
+            return true;
+        }
+        String owner = owner(nick);
+        if (user == null && !owner.equals(self)) {
+            // Sent on by the owner just as the nick was let go here: back
+            // to the owner, which has heard of that by now and keeps it
+            Link link = links.get(owner);
+            if (link == null) return false;
+            link.send(prefixed("PRIV 0 " + nick + " ", frame));
+            return true;
+        }
+        String holder = owned.get(nick);
+        Link link = user != null || holder == null || Inbox.holds(nick) ? null : links.get(holder);
+        if (link != null) {
+            link.send(prefixed("PRIV 0 " + nick + " ", frame));
+            return true;
+        }
+        return Inbox.offer(nick, record(frame));
+    }
+
+    // "PRIVATE <from> <message>\n" as an inbox record, "<from> <message>"
+    private static byte[] record(ByteBuffer frame) {
+        int skip = "PRIVATE ".length();
+        byte[] record = new byte[frame.remaining() - skip - 1];
+        frame.get(frame.position() + skip, record);
+        return record;
+    }
+
+    private static ByteBuffer prefixed(String prefix, ByteBuffer frame) {
+        byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[head.length + frame.remaining()];
+        System.arraycopy(head, 0, line, 0, head.length);
+        frame.get(frame.position(), line, head.length, frame.remaining());
+        return ByteBuffer.wrap(line).asReadOnlyBuffer();
+    }
+
+    private static int indexOf(byte[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] == ' ') return i;
+        }
+        return to;
+    }
+
+    private static boolean startsWith(byte[] a, int from, int to, String prefix) {
+        if (to - from < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (a[from + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    static String report() {
+        return "cluster node " + self + ", links " + links.keySet() + ", relayed out " + relayedOut.sum() + ", in "
+                + relayedIn.sum() + ", nicks owned " + owned.size();
+    }
+
+    // One node-to-node connection. Reads happen on the thread running it;
+    // a virtual thread writes its queue, so relaying never blocks a reactor.
+    static class Link {
+        private final SocketChannel sc;
+        private final OutboundQueue outbound = new OutboundQueue(linkLimit, SlowConsumerPolicy.disconnect);
+        private final Thread writer = Thread.ofVirtual().unstarted(this::write);
+        // Rooms the peer has members in
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        volatile String peer;
+        private volatile boolean closed;
+
+        Link(SocketChannel sc) {
+            this.sc = sc;
+        }
+
+        void start() {
+            writer.start();
+        }
+
+        void send(String line) {
+            send(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        void send(ByteBuffer line) {
+            if (closed) return;
+            int offered = outbound.offer(line.duplicate());
+            if (offered == OutboundQueue.REJECTED) {
+                Log.warn("Cluster link to {} is too far behind", peer);
+                close();
+            } else if (offered == OutboundQueue.FIRST) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void write() {
+            ByteBuffer out = BufferPool.acquire(OutboundQueue.writeBuffer);
+            try {
+                while (!closed) {
+                    while (outbound.take(out) > 0) {
+                        out.flip();
+                        while (out.hasRemaining()) sc.write(out);
+                        out.clear();
+                    }
+                    LockSupport.park(this);
+                }
+            } catch (IOException e) {
+                close();
+            } finally {
+                BufferPool.release(out);
+            }
+        }
+
+        void close() {
+            closed = true;
+            LockSupport.unpark(writer);
+            try {
+                sc.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
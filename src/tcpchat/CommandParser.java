@@ -0,0 +1,133 @@
+package tcpchat;
+
+import java.nio.charset.StandardCharsets;
+
+// Single-pass parser for one framed line. Nothing is copied: the command is
+// found through a table indexed by its first letter and the arguments are
+// kept as offsets into the line. A parser is reused for every line read by
+// the same thread.
+class CommandParser {
+    // Command ids, also the index of their handler in ChatServer
+    static final int EMPTY = -1;
+    static final int MESSAGE = 0;
+    static final int NICK = 1;
+    static final int JOIN = 2;
+    static final int LEAVE = 3;
+    static final int BYE = 4;
+    static final int PRIV = 5;
+    static final int STATS = 6;
+    static final int HISTORY = 7;
+    static final int UPGRADE = 8;
+    static final int RESUME = 9;
+
+    private static final byte[][] names = new byte[10][];
+    // First letter of a command name (a-z) -> command id
+    private static final int[] byFirstLetter = new int[26];
+
+    static {
+        define(NICK, "nick");
+        define(JOIN, "join");
+        define(LEAVE, "leave");
+        define(BYE, "bye");
+        define(PRIV, "priv");
+        define(STATS, "stats");
+        define(HISTORY, "history");
+        define(UPGRADE, "upgrade");
+        define(RESUME, "resume");
+    }
+
+    private static void define(int id, String name) {
+        names[id] = name.getBytes(StandardCharsets.US_ASCII);
+        byFirstLetter[name.charAt(0) - 'a'] = id;
+    }
+
+    private byte[] line;
+    private int command;
+    private int bodyStart, end;
+    private int argStart, argEnd;
+    private int restStart;
+
+    // Parses line[from, to) and returns the command id. Lines that start with
+    // '/' but are not a command are messages without the '/', which is how
+    // clients send text that starts with a slash.
+    int parse(byte[] a, int from, int to) {
+        // Same as String.trim(): drop bytes up to ' ' at both ends
+        while (from < to && (a[from] & 0xff) <= ' ') from++;
+        while (to > from && (a[to - 1] & 0xff) <= ' ') to--;
+        line = a;
+        end = to;
+        bodyStart = from;
+        argStart = argEnd = restStart = to;
+        if (from == to) return command = EMPTY;
+        if (a[from] != '/') return command = MESSAGE;
+
+        int nameEnd = skipWord(a, from + 1, to);
+        int id = lookup(a, from + 1, nameEnd);
+        if (id == MESSAGE) {
+            bodyStart = from + 1;
+            return command = MESSAGE;
+        }
+        argStart = skipSpaces(a, nameEnd, to);
+        argEnd = skipWord(a, argStart, to);
+        restStart = skipSpaces(a, argEnd, to);
+        return command = id;
+    }
+
+    private static int lookup(byte[] a, int from, int to) {
+        if (from == to) return MESSAGE;
+        int first = a[from] - 'a';
+        if (first < 0 || first >= 26) return MESSAGE;
+        int id = byFirstLetter[first];
+        byte[] name = names[id];
+        if (name == null || name.length != to - from) return MESSAGE;
+        for (int i = 1; i < name.length; i++) {
+            if (a[from + i] != name[i]) return MESSAGE;
+        }
+        return id;
+    }
+
+    private static int skipWord(byte[] a, int i, int to) {
+        while (i < to && a[i] != ' ') i++;
+        return i;
+    }
+
+    private static int skipSpaces(byte[] a, int i, int to) {
+        while (i < to && a[i] == ' ') i++;
+        return i;
+    }
+
+    int command() {
+        return command;
+    }
+
+    byte[] line() {
+        return line;
+    }
+
+    // The text of a MESSAGE line
+    int bodyStart() {
+        return bodyStart;
+    }
+
+    int bodyLength() {
+        return end - bodyStart;
+    }
+
+    boolean hasArg() {
+        return argEnd > argStart;
+    }
+
+    // The first word after the command
+    String arg() {
+        return new String(line, argStart, argEnd - argStart, StandardCharsets.UTF_8);
+    }
+
+    boolean hasRest() {
+        return end > restStart;
+    }
+
+    // Everything after the first argument, spaces included
+    String rest() {
+        return new String(line, restStart, end - restStart, StandardCharsets.UTF_8);
+    }
+}
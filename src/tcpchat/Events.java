@@ -0,0 +1,186 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Java Flight Recorder events for what the server spends its time on. None
+// is allocated unless a recording has its type enabled, so with no recording
+// running they cost the hot paths one check each. jfr/tcpchat.jfc enables
+// them all; on top of the default settings, with a live server:
+//   jcmd <pid> JFR.start settings=default,<repo>/jfr/tcpchat.jfc filename=chat.jfr
+// or from the start with
+//   -XX:StartFlightRecording:settings=default,settings=jfr/tcpchat.jfc,filename=chat.jfr
+class Events {
+
+    @Name("tcpchat.Command")
+    @Label("Command")
+    @Category("TcpChat")
+    @Description("A command or chat line run for a client")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class Command extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Payload")
+        @DataAmount
+        int payload;
+
+        @Label("User")
+        String user;
+
+        @Label("Room")
+        String room;
+    }
+
+    @Name("tcpchat.Broadcast")
+    @Label("Broadcast")
+    @Category("TcpChat")
+    @Description("Frames queued for every member of a room; the writes happen on the members' own threads")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class Broadcast extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Members")
+        int members;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Lines")
+        int lines;
+
+        @Label("Frame Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("tcpchat.SelectorStall")
+    @Label("Selector Stall")
+    @Category("TcpChat")
+    @Description("A turn of a reactor's loop, from select() returning to the next select(), that took longer than the threshold")
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static class SelectorStall extends Event {
+        @Label("Selected Keys")
+        int keys;
+
+        @Label("Held Back Connections")
+        int held;
+
+        @Label("Timers")
+        int timers;
+    }
+
+    @Name("tcpchat.PartialWrite")
+    @Label("Partial Write")
+    @Category("TcpChat")
+    @Description("A socket that took less than was written to it; the rest waits for OP_WRITE")
+    @StackTrace(false)
+    static class PartialWrite extends Event {
+        @Label("Peer")
+        String peer;
+
+        @Label("Written")
+        @DataAmount
+        int written;
+
+        @Label("Pending")
+        @DataAmount
+        int pending;
+
+        @Label("Frames Pending")
+        int frames;
+    }
+
+    @Name("tcpchat.OutboundBacklog")
+    @Label("Outbound Backlog")
+    @Category("TcpChat")
+    @Description("A client's outbound queue was full: frames were dropped or the client is disconnected")
+    @StackTrace(false)
+    static class OutboundBacklog extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Action")
+        String action;
+
+        @Label("Pending")
+        @DataAmount
+        int pending;
+
+        @Label("Limit")
+        @DataAmount
+        int limit;
+
+        @Label("Dropped Frames")
+        long dropped;
+    }
+
+    private static final EventType commandType = EventType.getEventType(Command.class);
+    private static final EventType broadcastType = EventType.getEventType(Broadcast.class);
+    private static final EventType stallType = EventType.getEventType(SelectorStall.class);
+    private static final EventType partialWriteType = EventType.getEventType(PartialWrite.class);
+    private static final EventType backlogType = EventType.getEventType(OutboundBacklog.class);
+
+    // Begun events for the timed ones, or null while no recording wants them
+    static Command command() {
+        if (!commandType.isEnabled()) return null;
+        Command event = new Command();
+        event.begin();
+        return event;
+    }
+
+    static Broadcast broadcast() {
+        if (!broadcastType.isEnabled()) return null;
+        Broadcast event = new Broadcast();
+        event.begin();
+        return event;
+    }
+
+    static SelectorStall selectorStall() {
+        if (!stallType.isEnabled()) return null;
+        SelectorStall event = new SelectorStall();
+        event.begin();
+        return event;
+    }
+
+    static void partialWrite(SocketChannel sc, int written, int pending, int frames) {
+        if (!partialWriteType.isEnabled()) return;
+        PartialWrite event = new PartialWrite();
+        if (!event.shouldCommit()) return;
+        try {
+            event.peer = String.valueOf(sc.getRemoteAddress());
+        } catch (IOException e) {
+            // Closed meanwhile; the rest still says something
+        }
+        event.written = written;
+        event.pending = pending;
+        event.frames = frames;
+        event.commit();
+    }
+
+    static void outboundBacklog(User user, String action) {
+        if (!backlogType.isEnabled()) return;
+        OutboundBacklog event = new OutboundBacklog();
+        if (!event.shouldCommit()) return;
+        OutboundQueue outbound = user.getOutbound();
+        event.user = user.getName();
+        event.action = action;
+        event.pending = outbound.getBytes();
+        event.limit = outbound.getLimit();
+        event.dropped = outbound.getDropped();
+        event.commit();
+    }
+}
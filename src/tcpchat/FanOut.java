@@ -0,0 +1,98 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Queues a frame for every member of a room. Rooms of at least
+// chat.fanOut.parallelThreshold members are split into shards of about
+// chat.fanOut.shardSize, which the threads of a fork/join pool fill in
+// parallel; smaller rooms are walked by the calling thread, since handing
+// them over would cost more than it saves. Either way delivery returns once
+// every member has the frame queued, so the frames one thread sends reach
+// each member in the order it sent them.
+class FanOut {
+    static final int parallelThreshold = Integer.getInteger("chat.fanOut.parallelThreshold", 4096);
+    static final int shardSize = Math.max(1, Integer.getInteger("chat.fanOut.shardSize", 1024));
+    static final int threads = Integer.getInteger("chat.fanOut.threads", Runtime.getRuntime().availableProcessors());
+    static final boolean enabled = parallelThreshold > 0 && threads > 1;
+
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) pool = new ForkJoinPool(threads);
+        return pool;
+    }
+
+    // Sends frame to the room, and binary to its binary members (the frame
+    // wrapped as TEXT if it is null), skipping skip. Returns the number of
+    // members it went to.
+    static int deliver(Room room, ByteBuffer frame, ByteBuffer binary, User skip) {
+        boolean large = enabled && room.getNUsers() >= parallelThreshold;
+        return deliver(large ? pool() : null, room, frame, binary, skip);
+    }
+
+    // The same on the given pool, or on this thread alone if it is null
+    static int deliver(ForkJoinPool pool, Room room, ByteBuffer frame, ByteBuffer binary, User skip) {
+        if (pool == null) {
+            int recipients = 0;
+            for (User u : room.getUsers()) {
+                if (u == skip) continue;
+                // Made when the first binary member needs it
+                if (u.isBinary() && binary == null) binary = BinaryProtocol.text(frame);
+                if (send(u, frame, binary)) recipients++;
+            }
+            return recipients;
+        }
+        // Shards share it, so it is made up front
+        if (binary == null && room.hasBinaryUsers()) binary = BinaryProtocol.text(frame);
+        return pool.invoke(new Shard(room.getUsers().spliterator(), frame, binary, skip));
+    }
+
+    private static boolean send(User u, ByteBuffer frame, ByteBuffer binary) {
+        try {
+            ChatServer.send(u.isBinary() ? binary : frame, u);
+            return true;
+        } catch (IOException e) {
+            Log.warn("{}", e.getMessage());
+            return false;
+        }
+    }
+
+    // The members a spliterator covers; splits off and forks halves while it
+    // covers more than shardSize
+    private static class Shard extends RecursiveTask<Integer> {
+        private final Spliterator<User> members;
+        private final ByteBuffer frame;
+        private final ByteBuffer binary;
+        private final User skip;
+
+        Shard(Spliterator<User> members, ByteBuffer frame, ByteBuffer binary, User skip) {
+            this.members = members;
+            this.frame = frame;
+            this.binary = binary;
+            this.skip = skip;
+        }
+
+        @Override
+        protected Integer compute() {
+            List<Shard> forked = new ArrayList<>();
+            Spliterator<User> half;
+            while (members.estimateSize() > shardSize && (half = members.trySplit()) != null) {
+                Shard shard = new Shard(half, frame, binary, skip);
+                shard.fork();
+                forked.add(shard);
+            }
+            int[] recipients = new int[1];
+            members.forEachRemaining(u -> {
+                if (u != skip && send(u, frame, binary)) recipients[0]++;
+            });
+            for (Shard shard : forked) recipients[0] += shard.join();
+            return recipients[0];
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// What was said in each room, kept on disk so /history can replay it. A
+// room's log is a directory of segment files, each memory-mapped and filled
+// with records of [length][time][frame]. A sparse index holds the offset of
+// every 64th record of a segment, so finding where the last N messages
+// start is a lookup and a short scan. Appends go through one background
+// thread, so a page fault never stalls a reactor; a replay hands out
+// read-only slices of the mapped pages, which the outbound queues copy
+// straight into the socket's write buffer. Only the writer opens a log, when
+// its room is created or first said something in, so a replay never maps a
+// file on a reactor. Off unless chat.history.dir is set.
+class History {
+    static final String dir = System.getProperty("chat.history.dir", "");
+    static final boolean enabled = !dir.isEmpty();
+
+    static final int segmentBytes = Integer.getInteger("chat.history.segmentBytes", 1024 * 1024);
+    // Retention, per room: whole segments go once the log is bigger than
+    // maxBytes or once their newest message is older than maxAgeMillis
+    static final long maxBytes = Long.getLong("chat.history.maxBytes", 16L * 1024 * 1024);
+    static final long maxAgeMillis = Long.getLong("chat.history.maxAgeMillis", 0);
+    // Most messages one /history replays
+    static final int maxReplay = Integer.getInteger("chat.history.maxReplay", 1000);
+
+    private static final int indexEvery = 64;
+    private static final int header = 12;
+
+    private static final Map<String, RoomLog> logs = new ConcurrentHashMap<>();
+    private static final BlockingQueue<Append> appends =
+            new ArrayBlockingQueue<>(Integer.getInteger("chat.history.queue", 65536));
+    private static Thread writer;
+
+    // For the server stats
+    static final LongAdder appended = new LongAdder();
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder replayed = new LongAdder();
+
+    // A null frame only opens the room's log
+    private static class Append {
+        final String room;
+        final ByteBuffer frame;
+        final long time;
+
+        Append(String room, ByteBuffer frame, long time) {
+            this.room = room;
+            this.frame = frame;
+            this.time = time;
+        }
+    }
+
+    // Queues a MESSAGE frame for the room's log, from any thread. Drops it
+    // rather than wait if the writer is that far behind.
+    static void append(String room, ByteBuffer frame) {
+        if (!appends.offer(new Append(room, frame, System.currentTimeMillis()))) dropped.increment();
+    }
+
+    // Has the writer open the room's log, so /history finds it; called when
+    // the room is created
+    static void open(String room) {
+        appends.offer(new Append(room, null, 0));
+    }
+
+    // The room's last n messages, oldest first, as read-only views of the
+    // mapped segments; none until the writer has opened the log
+    static List<ByteBuffer> last(String room, int n) {
+        RoomLog log = logs.get(room);
+        if (log == null) return List.of();
+        List<ByteBuffer> frames = log.last(Math.min(n, maxReplay));
+        replayed.add(frames.size());
+        return frames;
+    }
+
+    static synchronized void start() {
+        if (writer != null) return;
+        writer = new Thread(History::write, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Log.info("History in {}", Paths.get(dir).toAbsolutePath());
+    }
+
+    private static void write() {
+        long nextRetention = 0;
+        while (true) {
+            try {
+                Append a = appends.poll(1, TimeUnit.SECONDS);
+                if (a != null) {
+                    RoomLog log = log(a.room);
+                    if (a.frame != null) {
+                        log.append(a.frame, a.time);
+                        appended.increment();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextRetention) {
+                    for (Map.Entry<String, RoomLog> e : logs.entrySet()) retain(e.getKey(), e.getValue(), now);
+                    nextRetention = now + 1000;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.warn("History: {}", e);
+            }
+        }
+    }
+
+    // Once its room has been evicted a log is let go, so ephemeral rooms do
+    // not keep a mapped segment and an index for the life of the process.
+    // The files stay for the room's next use, unless retention has aged out
+    // every record, in which case they go too. The GC unmaps the segments
+    // once the last replayed slice is gone. Writer thread only.
+    private static void retain(String room, RoomLog log, long now) throws IOException {
+        log.retain(now);
+        if (Room.rooms.containsKey(room)) return;
+        logs.remove(room, log);
+        if (log.expired(now)) log.delete();
+    }
+
+    // Writer thread only, so a log is opened once and never on a reactor
+    private static RoomLog log(String room) throws IOException {
+        RoomLog log = logs.get(room);
+        if (log != null) return log;
+        // Room names can hold anything, so the directory is named by their bytes
+        log = new RoomLog(Paths.get(dir, HexFormat.of().formatHex(room.getBytes(StandardCharsets.UTF_8))));
+        logs.put(room, log);
+        return log;
+    }
+
+    // One room's segments. Only the writer thread appends or removes
+    // segments; any thread may replay.
+    static class RoomLog {
+        private final Path dir;
+        // Oldest first; the last one takes the appends
+        private volatile Segment[] segments;
+
+        RoomLog(Path dir) throws IOException {
+            this.dir = dir;
+            Files.createDirectories(dir);
+            List<Segment> found = new ArrayList<>();
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".log")) found.add(new Segment(file, Long.parseLong(name.substring(0, name.length() - 4))));
+                }
+            }
+            found.sort((a, b) -> Long.compare(a.base, b.base));
+            segments = found.toArray(new Segment[0]);
+        }
+
+        void append(ByteBuffer frame, long time) throws IOException {
+            int size = header + frame.remaining();
+            if (size > segmentBytes) return;
+            Segment[] segs = segments;
+            Segment active = segs.length == 0 ? null : segs[segs.length - 1];
+            if (active == null || !active.fits(size)) {
+                long base = active == null ? 0 : active.base + active.count;
+                active = new Segment(dir.resolve(String.format("%020d.log", base)), base);
+                segs = Arrays.copyOf(segs, segs.length + 1);
+                segs[segs.length - 1] = active;
+                segments = segs;
+            }
+            active.append(frame, time);
+        }
+
+        List<ByteBuffer> last(int n) {
+            Segment[] segs = segments;
+            // How many records each segment has right now; the writer may add more
+            int[] counts = new int[segs.length];
+            int i = segs.length;
+            int need = n;
+            while (i > 0 && need > 0) {
+                i--;
+                counts[i] = segs[i].count;
+                need -= counts[i];
+            }
+            List<ByteBuffer> frames = new ArrayList<>(Math.max(0, n));
+            long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+            for (int skip = Math.max(0, -need); i < segs.length; i++, skip = 0) {
+                segs[i].read(skip, counts[i], cutoff, frames);
+            }
+            return frames;
+        }
+
+        // Drops old segments, never the one taking appends
+        void retain(long now) throws IOException {
+            Segment[] segs = segments;
+            int drop = 0;
+            long total = (long) segs.length * segmentBytes;
+            while (drop < segs.length - 1) {
+                Segment oldest = segs[drop];
+                boolean tooOld = maxAgeMillis > 0 && oldest.lastTime < now - maxAgeMillis;
+                if (total <= maxBytes && !tooOld) break;
+                total -= segmentBytes;
+                drop++;
+            }
+            if (drop == 0) return;
+            segments = Arrays.copyOfRange(segs, drop, segs.length);
+            // Replays still holding a slice keep reading the mapping
+            for (int i = 0; i < drop; i++) Files.deleteIfExists(segs[i].path);
+        }
+
+        // Whether every record, the active segment's too, is past maxAgeMillis
+        boolean expired(long now) {
+            if (maxAgeMillis <= 0) return false;
+            for (Segment s : segments) {
+                if (s.count > 0 && s.lastTime >= now - maxAgeMillis) return false;
+            }
+            return true;
+        }
+
+        // Removes the log's files; it must no longer be in logs. A replay that
+        // got the log before that may still be reading it: deleting a mapped
+        // file leaves its pages readable until the GC unmaps them, just as
+        // for the segments retain() drops. (That takes a system where mapped
+        // files can be deleted; elsewhere the delete fails and is logged.)
+        void delete() throws IOException {
+            Segment[] segs = segments;
+            segments = new Segment[0];
+            for (Segment s : segs) Files.deleteIfExists(s.path);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // One mapped file of records. A zero length marks the end, which is how a
+    // segment is recovered when the server starts again.
+    static class Segment {
+        final long base;
+        final Path path;
+        private final MappedByteBuffer map;
+        // Offset of record i * indexEvery
+        private int[] index = new int[16];
+        private int end;
+        volatile int count;
+        volatile long lastTime;
+
+        Segment(Path path, long base) throws IOException {
+            this.base = base;
+            this.path = path;
+            try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                map = fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+            int n = 0;
+            while (end + header <= segmentBytes) {
+                int length = map.getInt(end);
+                if (length <= 0 || end + header + length > segmentBytes) break;
+                indexRecord(n, end);
+                lastTime = map.getLong(end + 4);
+                end += header + length;
+                n++;
+            }
+            count = n;
+        }
+
+        boolean fits(int size) {
+            return end + size <= segmentBytes;
+        }
+
+        // Writer thread only. The length goes in last, so a record is only
+        // ever seen whole; count publishes it to replays.
+        void append(ByteBuffer frame, long time) {
+            int length = frame.remaining();
+            int n = count;
+            indexRecord(n, end);
+            map.putLong(end + 4, time);
+            map.put(end + header, frame, frame.position(), length);
+            map.putInt(end, length);
+            end += header + length;
+            lastTime = time;
+            count = n + 1;
+        }
+
+        private void indexRecord(int n, int offset) {
+            if (n % indexEvery != 0) return;
+            int slot = n / indexEvery;
+            if (slot == index.length) index = Arrays.copyOf(index, 2 * index.length);
+            index[slot] = offset;
+        }
+
+        // Adds records [from, to) that are newer than cutoff
+        void read(int from, int to, long cutoff, List<ByteBuffer> frames) {
+            if (from >= to) return;
+            int offset = index[from / indexEvery];
+            for (int i = from - from % indexEvery; i < from; i++) offset += header + map.getInt(offset);
+            for (int i = from; i < to; i++) {
+                int length = map.getInt(offset);
+                if (map.getLong(offset + 4) >= cutoff) {
+                    frames.add(map.slice(offset + header, length).asReadOnlyBuffer());
+                }
+                offset += header + length;
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Private messages for nicks nobody is using. A /priv to a nick that is not
+// registered here (nor, in a cluster, anywhere else) goes into that nick's
+// inbox, and the next connection to take the nick with /nick gets them, oldest
+// first, as ordinary PRIVATE lines; in a cluster the nick's owner node keeps
+// the inbox and sends it on to whichever node that is. Each inbox keeps its
+// newest chat.inbox.memoryMessages in memory, within chat.inbox.memoryBytes
+// over all inboxes; older ones are spilled to segment files of
+// [length][sender message] records in a directory of their own, made under chat.inbox.dir (the
+// system's temporary directory by default) when first needed, up to
+// chat.inbox.maxBytes a nick, past which its oldest segments go. At most
+// chat.inbox.maxNicks inboxes are kept, and a /priv that would open another
+// gets ERROR, as does one while the store is chat.inbox.queueBytes behind.
+//
+// One thread owns the inboxes and does all the file work, so a reactor only
+// hands it messages. A backlog goes out chat.inbox.batch messages at a time,
+// and waits while the recipient's outbound queue is over half full, so it
+// neither holds up a reactor nor overflows the queue; new messages for the
+// nick queue up behind it. Spill files are scratch: each run makes a new
+// directory, never reads anything already there, and deletes its own
+// directory when it shuts down cleanly.
+class Inbox {
+    static final int maxNicks = Integer.getInteger("chat.inbox.maxNicks", 10000);
+    static final boolean enabled = maxNicks > 0;
+    static final int memoryMessages = Math.max(1, Integer.getInteger("chat.inbox.memoryMessages", 64));
+    static final long memoryBytes = Long.getLong("chat.inbox.memoryBytes", 4L * 1024 * 1024);
+    static final long queueBytes = Long.getLong("chat.inbox.queueBytes", 1024 * 1024);
+    static final long maxBytes = Long.getLong("chat.inbox.maxBytes", 1024 * 1024);
+    static final int segmentBytes = Integer.getInteger("chat.inbox.segmentBytes", 64 * 1024);
+    static final int batch = Math.max(1, Integer.getInteger("chat.inbox.batch", 64));
+    private static final String dirName = System.getProperty("chat.inbox.dir", "");
+
+    private static final int readChunk = 16 * 1024;
+    private static final long retryMillis = 10;
+
+    // Totals, for the server stats
+    static final LongAdder stored = new LongAdder();
+    static final LongAdder spilled = new LongAdder();
+    static final LongAdder delivered = new LongAdder();
+    static final LongAdder dropped = new LongAdder();
+    // Bytes handed to the store thread and not stored yet
+    private static final AtomicLong queued = new AtomicLong();
+    // Bytes of the messages kept in memory; only the store thread writes it
+    private static volatile long held;
+
+    // By nick. Only the store thread adds or removes them, or touches what
+    // is inside.
+    private static final Map<String, Box> boxes = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService store;
+    private static Path dir;
+
+    static int count() {
+        return boxes.size();
+    }
+
+    static long heldBytes() {
+        return held;
+    }
+
+    // True while nick has messages waiting, which newer ones must not overtake
+    static boolean holds(String nick) {
+        return enabled && boxes.containsKey(nick);
+    }
+
+    // Keeps a private message for nick; false if it cannot be kept
+    static boolean offer(String nick, String from, String message) {
+        return offer(nick, (from + " " + message).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The same for a record, "<from> <message>"
+    static boolean offer(String nick, byte[] record) {
+        if (!enabled || boxes.size() >= maxNicks && !boxes.containsKey(nick)) return false;
+        if (queued.addAndGet(record.length) > queueBytes) {
+            queued.addAndGet(-record.length);
+            return false;
+        }
+        store().execute(() -> {
+            queued.addAndGet(-record.length);
+            store(nick, record);
+        });
+        return true;
+    }
+
+    // Starts handing nick's inbox to user, which has just taken the nick
+    static void deliver(User user) {
+        if (enabled) deliver(user.getName(), user, null);
+    }
+
+    // The same for a user of another cluster node, which has taken a nick
+    // this node owns
+    static void deliver(String nick, String node) {
+        if (enabled) deliver(nick, null, node);
+    }
+
+    private static void deliver(String nick, User user, String node) {
+        store().execute(() -> {
+            Box box = boxes.get(nick);
+            if (box == null) return;
+            box.to = user;
+            box.node = node;
+            if (!box.delivering) {
+                box.delivering = true;
+                next(box);
+            }
+        });
+    }
+
+    private static void store(String nick, byte[] record) {
+        Box box = boxes.get(nick);
+        if (box == null) {
+            // Taken while the message was on its way
+            User user = User.registeredUsers.get(nick);
+            if (user != null) {
+                send(record, user);
+                return;
+            }
+            String node = Cluster.enabled ? Cluster.holder(nick) : null;
+            if (node != null && !node.equals(Cluster.self) && Cluster.forward(node, nick, record)) {
+                delivered.increment();
+                return;
+            }
+            if (boxes.size() >= maxNicks) {
+                dropped.increment();
+                return;
+            }
+            box = new Box(nick);
+            boxes.put(nick, box);
+        }
+        box.add(record);
+        stored.increment();
+    }
+
+    // Sends the box its next batch, unless the nick's user is gone or its
+    // queue, or the link to its node, is still busy with the last one
+    private static void next(Box box) {
+        User user = box.to;
+        String node = box.node;
+        boolean gone = node == null
+                ? User.registeredUsers.get(box.nick) != user || user.isClosing()
+                : !node.equals(Cluster.holder(box.nick));
+        if (boxes.get(box.nick) != box || gone) {
+            // What is left waits for the nick's next user
+            box.delivering = false;
+            return;
+        }
+        boolean busy = node == null
+                ? user.getOutbound().getBytes() > user.getOutbound().getLimit() / 2
+                : Cluster.busy(node);
+        if (busy) {
+            store.schedule(() -> next(box), retryMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        for (byte[] record : box.take(batch)) {
+            if (node == null) {
+                send(record, user);
+            } else if (Cluster.forward(node, box.nick, record)) {
+                delivered.increment();
+            } else {
+                dropped.increment();
+            }
+        }
+        if (box.isEmpty()) {
+            boxes.remove(box.nick);
+            box.delete();
+        } else {
+            store.execute(() -> next(box));
+        }
+    }
+
+    private static void send(byte[] record, User user) {
+        String line = new String(record, StandardCharsets.UTF_8);
+        int space = line.indexOf(' ');
+        try {
+            ChatServer.send(user.isBinary()
+                    ? BinaryProtocol.privateMessage(line.substring(0, space), line.substring(space + 1))
+                    : ChatServer.encode("PRIVATE " + line), user);
+            delivered.increment();
+        } catch (IOException e) {
+            Log.warn("{}", e.getMessage());
+        }
+    }
+
+    private static synchronized ScheduledExecutorService store() {
+        if (store == null) {
+            store = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "inbox");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return store;
+    }
+
+    // Store thread only
+    private static Path dir() throws IOException {
+        if (dir != null) return dir;
+        if (dirName.isEmpty()) {
+            dir = Files.createTempDirectory("tcpchat-inbox");
+        } else {
+            dir = Files.createTempDirectory(Files.createDirectories(Paths.get(dirName)), "tcpchat-inbox");
+        }
+        Log.info("Inbox spills to {}", dir.toAbsolutePath());
+        Runtime.getRuntime().addShutdownHook(new Thread(Inbox::deleteDir, "inbox-cleanup"));
+        return dir;
+    }
+
+    // Runs at shutdown: stops the store thread so it writes nothing more, then
+    // removes this run's directory, deepest paths first
+    private static void deleteDir() {
+        store.shutdownNow();
+        try {
+            store.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    Log.warn("{}", e);
+                }
+            });
+        } catch (IOException e) {
+            Log.warn("{}", e);
+        }
+    }
+
+    // One nick's messages: the spilled ones, oldest segment first, then the
+    // recent ones still in memory
+    private static class Box {
+        final String nick;
+        final ArrayDeque<byte[]> recent = new ArrayDeque<>();
+        final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        long spilledBytes;
+        int nextSegment;
+        Path path;
+        // Who the messages are going to, while delivering: a user here, or
+        // the cluster node holding the nick
+        User to;
+        String node;
+        boolean delivering;
+
+        Box(String nick) {
+            this.nick = nick;
+        }
+
+        boolean isEmpty() {
+            return recent.isEmpty() && segments.isEmpty();
+        }
+
+        void add(byte[] record) {
+            recent.add(record);
+            held += record.length;
+            if (recent.size() > memoryMessages || held > memoryBytes) spill();
+        }
+
+        // Moves the oldest recent messages to disk: down to half the cap, or
+        // all of them if memory as a whole is over budget
+        private void spill() {
+            int keep = held > memoryBytes ? 0 : memoryMessages / 2;
+            try {
+                while (recent.size() > keep) {
+                    Segment tail = segments.peekLast();
+                    if (tail == null || tail.end + 4 + recent.peek().length > segmentBytes && tail.end > 0) {
+                        if (path == null) path = dir().resolve(HexFormat.of().formatHex(nick.getBytes(StandardCharsets.UTF_8)));
+                        Files.createDirectories(path);
+                        tail = new Segment(path.resolve(nextSegment++ + ".seg"));
+                        segments.add(tail);
+                    }
+                    spilledBytes += tail.append(recent, keep);
+                }
+            } catch (IOException e) {
+                // Kept in memory a while longer, over the budget
+                Log.warn("Inbox of {}: {}", nick, e);
+            }
+            // The nick's oldest messages go first; never the segment being appended to
+            while (spilledBytes > maxBytes && segments.size() > 1) {
+                Segment oldest = segments.poll();
+                spilledBytes -= oldest.end;
+                dropped.add(oldest.unread);
+                oldest.delete();
+            }
+        }
+
+        // Takes up to n of the oldest messages out
+        List<byte[]> take(int n) {
+            List<byte[]> records = new ArrayList<>(n);
+            while (records.size() < n && !segments.isEmpty()) {
+                Segment oldest = segments.peek();
+                try {
+                    oldest.read(n - records.size(), records);
+                } catch (IOException e) {
+                    Log.warn("Inbox of {}: {}", nick, e);
+                    dropped.add(oldest.unread);
+                    oldest.unread = 0;
+                }
+                if (oldest.unread == 0) {
+                    segments.poll();
+                    spilledBytes -= oldest.end;
+                    oldest.delete();
+                }
+            }
+            while (records.size() < n && !recent.isEmpty()) {
+                byte[] record = recent.poll();
+                held -= record.length;
+                records.add(record);
+            }
+            return records;
+        }
+
+        // Once empty
+        void delete() {
+            if (path == null) return;
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                Log.warn("Inbox of {}: {}", nick, e);
+            }
+        }
+    }
+
+    // One spill file, appended to and read from the front
+    private static class Segment {
+        final Path path;
+        long end;
+        long read;
+        int unread;
+
+        Segment(Path path) {
+            this.path = path;
+        }
+
+        // Writes the oldest records that fit, keeping the newest keep in
+        // memory; at least one, so a record bigger than a segment gets one
+        // of its own. Returns the bytes written.
+        int append(ArrayDeque<byte[]> recent, int keep) throws IOException {
+            int size = 0;
+            int n = 0;
+            for (byte[] record : recent) {
+                if (n == recent.size() - keep || n > 0 && end + size + 4 + record.length > segmentBytes) break;
+                size += 4 + record.length;
+                n++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            for (int i = 0; i < n; i++) {
+                byte[] record = recent.peek();
+                buf.putInt(record.length).put(record);
+                recent.poll();
+                held -= record.length;
+            }
+            buf.flip();
+            try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                while (buf.hasRemaining()) fc.write(buf);
+            }
+            end += size;
+            unread += n;
+            spilled.add(n);
+            return size;
+        }
+
+        // Adds up to n records from where the last read stopped
+        void read(int n, List<byte[]> records) throws IOException {
+            try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buf = readAt(fc, (int) Math.min(end - read, readChunk));
+                int length = buf.getInt(0);
+                if (4 + length > buf.limit()) buf = readAt(fc, 4 + length);
+                while (n > 0 && buf.remaining() >= 4 && buf.remaining() >= 4 + buf.getInt(buf.position())) {
+                    byte[] record = new byte[buf.getInt()];
+                    buf.get(record);
+                    records.add(record);
+                    read += 4 + record.length;
+                    unread--;
+                    n--;
+                }
+            }
+        }
+
+        private ByteBuffer readAt(FileChannel fc, int size) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, read + buf.position()) < 0) throw new IOException("Short inbox segment " + path);
+            }
+            return buf.flip();
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                Log.warn("{}", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package tcpchat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Splits the bytes read from one connection into lines. It looks for '\n' in
+// the raw bytes and hands each complete line on as bytes, so a UTF-8
+// character split over two reads is never decoded in halves. Only the
+// unfinished tail of a read is copied, and it can never grow past maxLine;
+// a reader that stops part way can also hand back the lines it has not
+// run yet. Switched to length-prefixed frames, it does the same for the
+// binary protocol, with a frame's body in place of a line.
+class LineFramer {
+    private final int maxLine;
+    // Frames are [length: 2 bytes][body] instead of lines
+    private boolean lengthPrefixed;
+    // Bytes not handed out yet are pending[start, length): the start of an
+    // unfinished line, or lines held back with hold()
+    private byte[] pending;
+    private int start;
+    private int length;
+
+    // The last line found by next()
+    private byte[] lineArray;
+    private int lineOffset;
+    private int lineLength;
+
+    LineFramer(int maxLine) {
+        this.maxLine = maxLine;
+    }
+
+    // From now on, for the binary protocol; bytes already held are taken as
+    // the start of a frame
+    void lengthPrefixed() {
+        lengthPrefixed = true;
+    }
+
+    // Bytes held so far
+    int pendingBytes() {
+        return length - start;
+    }
+
+    // Whether a complete line was held back with hold()
+    boolean hasLine() {
+        if (lengthPrefixed) return length - start >= 2 && 2 + frameLength(pending, start) <= length - start;
+        return indexOf(pending, start, length) >= 0;
+    }
+
+    // Finds the next complete line, first among the bytes held and then in
+    // in, and moves past it; or keeps what is left of in and returns false.
+    // The line (without the '\n') is then lineArray()[lineOffset(),
+    // lineOffset() + lineLength()) and stays valid until the next call.
+    // Throws once a line is longer than maxLine bytes.
+    boolean next(ByteBuffer in) throws ProtocolException {
+        if (lengthPrefixed) return nextFrame(in);
+        if (start < length) {
+            int eol = indexOf(pending, start, length);
+            if (eol >= 0) {
+                if (eol - start > maxLine) throw tooLong();
+                lineArray = pending;
+                lineOffset = start;
+                lineLength = eol - start;
+                start = eol + 1;
+                if (start == length) reset();
+                return true;
+            }
+        }
+        int from = in.position();
+        int end = in.limit();
+        int eol = indexOf(in, from, end);
+        if (eol < 0) {
+            append(in, from, end - from);
+            in.position(end);
+            return false;
+        }
+        if (start == length) {
+            // The usual case: the whole line is in this read. It is used in
+            // place, or copied once out of a direct buffer.
+            if (eol - from > maxLine) throw tooLong();
+            if (in.hasArray()) {
+                lineArray = in.array();
+                lineOffset = in.arrayOffset() + from;
+            } else {
+                lineArray = scratch(eol - from);
+                lineOffset = 0;
+                in.get(from, lineArray, 0, eol - from);
+            }
+            lineLength = eol - from;
+        } else {
+            append(in, from, eol - from);
+            lineArray = pending;
+            lineOffset = start;
+            lineLength = length - start;
+            reset();
+        }
+        in.position(eol + 1);
+        return true;
+    }
+
+    // next() for length-prefixed frames: the "line" is the frame's body
+    private boolean nextFrame(ByteBuffer in) throws ProtocolException {
+        if (start < length) {
+            // Finish the frame started in an earlier read; first its length
+            if (length - start < 2 && !take(in, 2 - (length - start))) return false;
+            int size = frameLength(pending, start);
+            if (size > maxLine) throw tooLong();
+            if (length - start < 2 + size && !take(in, 2 + size - (length - start))) return false;
+            lineArray = pending;
+            lineOffset = start + 2;
+            lineLength = size;
+            start += 2 + size;
+            if (start == length) reset();
+            return true;
+        }
+        int from = in.position();
+        int end = in.limit();
+        if (end - from < 2) {
+            take(in, end - from);
+            return false;
+        }
+        int size = (in.get(from) & 0xff) << 8 | in.get(from + 1) & 0xff;
+        if (size > maxLine) throw tooLong();
+        if (end - from - 2 < size) {
+            take(in, end - from);
+            return false;
+        }
+        if (in.hasArray()) {
+            lineArray = in.array();
+            lineOffset = in.arrayOffset() + from + 2;
+        } else {
+            lineArray = scratch(size);
+            lineOffset = 0;
+            in.get(from + 2, lineArray, 0, size);
+        }
+        lineLength = size;
+        in.position(from + 2 + size);
+        return true;
+    }
+
+    // Moves up to n bytes of in to the pending bytes; true if there were n
+    private boolean take(ByteBuffer in, int n) {
+        int m = Math.min(n, in.remaining());
+        if (m > 0) {
+            ensure(m);
+            in.get(in.position(), pending, length, m);
+            length += m;
+            in.position(in.position() + m);
+        }
+        return m == n;
+    }
+
+    private static int frameLength(byte[] a, int at) {
+        return (a[at] & 0xff) << 8 | a[at + 1] & 0xff;
+    }
+
+    // Keeps the rest of in, complete lines included, for later calls to
+    // next(). This is how a reader stops part way through what it read.
+    void hold(ByteBuffer in) {
+        int n = in.remaining();
+        if (n == 0) return;
+        ensure(n);
+        in.get(in.position(), pending, length, n);
+        length += n;
+        in.position(in.limit());
+    }
+
+    byte[] lineArray() {
+        return lineArray;
+    }
+
+    int lineOffset() {
+        return lineOffset;
+    }
+
+    int lineLength() {
+        return lineLength;
+    }
+
+    // Takes whatever is left without a newline, e.g. when the peer closes
+    String rest() {
+        // Half a binary frame means nothing
+        if (lengthPrefixed) reset();
+        if (start == length) return "";
+        String line = new String(pending, start, length - start, StandardCharsets.UTF_8);
+        reset();
+        return line;
+    }
+
+    // Per-thread room for lines copied out of direct buffers
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private static byte[] scratch(int n) {
+        byte[] a = scratch.get();
+        if (a.length < n) {
+            a = new byte[Math.max(n, 2 * a.length)];
+            scratch.set(a);
+        }
+        return a;
+    }
+
+    private static int indexOf(byte[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer in, int start, int end) {
+        if (in.hasArray()) {
+            byte[] a = in.array();
+            int offset = in.arrayOffset();
+            for (int i = start + offset; i < end + offset; i++) {
+                if (a[i] == '\n') return i - offset;
+            }
+            return -1;
+        }
+        for (int i = start; i < end; i++) {
+            if (in.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private void append(ByteBuffer in, int from, int n) throws ProtocolException {
+        if (n == 0) return;
+        if (length - start + n > maxLine) throw tooLong();
+        ensure(n);
+        in.get(from, pending, length, n);
+        length += n;
+    }
+
+    // Makes room for n more bytes, moving what is held to the front
+    private void ensure(int n) {
+        int held = length - start;
+        if (pending != null && start > 0) {
+            System.arraycopy(pending, start, pending, 0, held);
+            start = 0;
+            length = held;
+        }
+        if (pending == null || length + n > pending.length) {
+            byte[] bigger = new byte[Math.max(length + n, Math.min(maxLine, Math.max(64, 2 * (length + n))))];
+            if (length > 0) System.arraycopy(pending, 0, bigger, 0, length);
+            pending = bigger;
+        }
+    }
+
+    // Lets go of a big array once its line is done, so a single long line does
+    // not pin memory for the rest of the connection
+    private void reset() {
+        start = 0;
+        length = 0;
+        if (pending != null && pending.length > 1024) pending = null;
+    }
+
+    private ProtocolException tooLong() {
+        reset();
+        return new ProtocolException("Line longer than " + maxLine + " bytes");
+    }
+}
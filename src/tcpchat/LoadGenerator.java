@@ -0,0 +1,338 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Headless client for load tests: opens many simulated users against a
+// server, has each one /nick and /join a room, then sends chat lines at a
+// target rate. Every line carries its send time, so each MESSAGE frame that
+// comes back gives an end-to-end delivery latency.
+//
+//   java -Dload.users=5000 -Dload.rate=20000 tcpchat.LoadGenerator localhost 8000
+public class LoadGenerator {
+    static final int users = Integer.getInteger("load.users", 1000);
+    static final int rooms = Integer.getInteger("load.rooms", 10);
+    // "uniform" spreads users evenly; "zipf" makes room k about 1/k^skew as busy as the first
+    static final String distribution = System.getProperty("load.distribution", "uniform");
+    static final double skew = Double.parseDouble(System.getProperty("load.skew", "1.0"));
+    // Chat lines per second, over all users
+    static final double rate = Double.parseDouble(System.getProperty("load.rate", "1000"));
+    static final int payload = Integer.getInteger("load.payload", 32);
+    static final int warmupSeconds = Integer.getInteger("load.warmup", 5);
+    static final int seconds = Integer.getInteger("load.seconds", 30);
+    static final int threads = Integer.getInteger("load.threads", 1);
+    // How many connects may be in progress at once, so the server's accept
+    // backlog does not overflow
+    static final int connectWindow = Integer.getInteger("load.connectWindow", 256);
+
+    public static void main(String[] args) throws Exception {
+        String server = args[0];
+        int port = Integer.parseInt(args[1]);
+
+        int[] roomOf = assignRooms();
+        int[] roomSize = new int[rooms];
+        for (int room : roomOf) roomSize[room]++;
+
+        Worker[] workers = new Worker[threads];
+        Thread[] running = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            List<SimUser> mine = new ArrayList<>();
+            for (int i = t; i < users; i += threads) mine.add(new SimUser(i, roomOf[i]));
+            workers[t] = new Worker(server, port, mine, roomSize);
+            running[t] = new Thread(workers[t], "load-" + t);
+            running[t].start();
+        }
+        System.out.println(users + " users in " + rooms + " rooms (" + distribution + "), " + threads
+                + " threads, " + rate + " msg/s of " + payload + " bytes, " + warmupSeconds + " s warmup + "
+                + seconds + " s");
+
+        // Progress once a second until every worker is done
+        boolean done = false;
+        while (!done) {
+            Thread.sleep(1000);
+            long ready = 0, sent = 0, delivered = 0;
+            done = true;
+            for (int t = 0; t < threads; t++) {
+                ready += workers[t].ready.size();
+                sent += workers[t].sent;
+                delivered += workers[t].delivered;
+                done &= !running[t].isAlive();
+            }
+            System.out.println("ready " + ready + "/" + users + ", sent " + sent + ", delivered " + delivered);
+        }
+
+        Histogram latency = new Histogram();
+        long sent = 0, delivered = 0, expected = 0, errors = 0, failed = 0, disconnects = 0, backlogged = 0;
+        for (Worker w : workers) {
+            latency.add(w.latency);
+            sent += w.measuredSent;
+            delivered += w.measuredDelivered;
+            expected += w.measuredExpected;
+            errors += w.errors;
+            failed += w.failed;
+            disconnects += w.disconnects;
+            backlogged += w.backlogged;
+        }
+        System.out.println();
+        System.out.println("sent      " + sent + " msgs, " + sent / seconds + " msg/s");
+        System.out.println("delivered " + delivered + " frames, " + delivered / seconds + " frames/s ("
+                + (expected == 0 ? 0 : Math.round(100.0 * delivered / expected)) + "% of " + expected + ")");
+        System.out.println("latency   us: p50 " + latency.percentile(0.5) + ", p99 " + latency.percentile(0.99)
+                + ", p999 " + latency.percentile(0.999) + ", max " + latency.getMax() + ", mean "
+                + Math.round(latency.getMean()));
+        System.out.println("errors " + errors + ", users refused at setup " + failed + ", disconnects " + disconnects + ", sends skipped on backlog "
+                + backlogged);
+    }
+
+    private static int[] assignRooms() {
+        int[] roomOf = new int[users];
+        if (!distribution.equals("zipf")) {
+            for (int i = 0; i < users; i++) roomOf[i] = i % rooms;
+            return roomOf;
+        }
+        double[] cdf = new double[rooms];
+        double total = 0;
+        for (int k = 0; k < rooms; k++) {
+            total += 1 / Math.pow(k + 1, skew);
+            cdf[k] = total;
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < users; i++) {
+            int k = Arrays.binarySearch(cdf, random.nextDouble() * total);
+            roomOf[i] = Math.min(k < 0 ? -k - 1 : k, rooms - 1);
+        }
+        return roomOf;
+    }
+
+    static class SimUser {
+        final int id;
+        final int room;
+        final LineFramer framer = new LineFramer(64 * 1024);
+        SocketChannel sc;
+        ByteBuffer pending;
+        boolean connected;
+        boolean failed;
+        int oks;
+
+        SimUser(int id, int room) {
+            this.id = id;
+            this.room = room;
+        }
+    }
+
+    // Drives a share of the users on one selector
+    static class Worker implements Runnable {
+        private final String server;
+        private final int port;
+        private final List<SimUser> all;
+        private final int[] roomSize;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final byte[] padding;
+        private Selector selector;
+        private int nextToConnect;
+        private int connecting;
+        // Lines sent before this are warmup and not measured
+        private long measureFrom = Long.MAX_VALUE;
+
+        final List<SimUser> ready = new ArrayList<>();
+        final Histogram latency = new Histogram();
+        volatile long sent;
+        volatile long delivered;
+        long measuredSent, measuredDelivered, measuredExpected;
+        // Users refused during setup (an ERROR to /nick or /join) are
+        // failed; they are closed and, like disconnects, not waited for
+        long errors, failed, disconnects, backlogged;
+
+        Worker(String server, int port, List<SimUser> all, int[] roomSize) {
+            this.server = server;
+            this.port = port;
+            this.all = all;
+            this.roomSize = roomSize;
+            padding = new byte[Math.max(0, payload - 20)];
+            Arrays.fill(padding, (byte) 'x');
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                // Connect and join first; the clock starts when every user is in
+                while (ready.size() + failed + disconnects < all.size()) {
+                    connectMore();
+                    poll(10);
+                }
+                long start = System.nanoTime();
+                measureFrom = start + warmupSeconds * 1_000_000_000L;
+                long end = measureFrom + seconds * 1_000_000_000L;
+                double perNano = rate / threads / 1e9;
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    long due = (long) ((now - start) * perNano) - sent;
+                    for (long i = 0; i < due && !ready.isEmpty(); i++) {
+                        sendOne(now, now >= measureFrom);
+                    }
+                    poll(1);
+                }
+                for (SimUser u : all) {
+                    if (u.sc != null) u.sc.close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println(Thread.currentThread().getName() + ": " + e);
+            }
+        }
+
+        private void connectMore() throws IOException {
+            while (connecting < connectWindow && nextToConnect < all.size()) {
+                SimUser u = all.get(nextToConnect++);
+                u.sc = ChatClient.connect(selector, server, port);
+                u.sc.keyFor(selector).attach(u);
+                connecting++;
+            }
+        }
+
+        private void poll(long timeout) throws IOException {
+            selector.select(timeout);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                SimUser u = (SimUser) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        ChatClient.finishConnect(u.sc);
+                        u.connected = true;
+                        connecting--;
+                        key.interestOps(SelectionKey.OP_READ);
+                        write(u, ("/nick load" + u.id + "\n/join room" + u.room + "\n").getBytes(StandardCharsets.UTF_8));
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        flush(u);
+                    }
+                    if (key.isReadable()) {
+                        read(u);
+                    }
+                } catch (IOException e) {
+                    drop(u);
+                }
+            }
+        }
+
+        private void read(SimUser u) throws IOException {
+            buffer.clear();
+            if (u.sc.read(buffer) == -1) {
+                drop(u);
+                return;
+            }
+            buffer.flip();
+            long now = System.nanoTime();
+            try {
+                while (u.framer.next(buffer)) {
+                    line(u, u.framer.lineArray(), u.framer.lineOffset(), u.framer.lineLength(), now);
+                }
+            } catch (ProtocolException e) {
+                drop(u);
+            }
+        }
+
+        private void line(SimUser u, byte[] a, int off, int len, long now) {
+            if (startsWith(a, off, len, "MESSAGE ")) {
+                // MESSAGE <nick> <sent nanos> <padding>
+                int i = off + 8;
+                int end = off + len;
+                while (i < end && a[i] != ' ') i++;
+                long sentAt = 0;
+                for (i++; i < end && a[i] >= '0' && a[i] <= '9'; i++) sentAt = sentAt * 10 + (a[i] - '0');
+                delivered++;
+                if (sentAt >= measureFrom) {
+                    latency.record((now - sentAt) / 1000);
+                    measuredDelivered++;
+                }
+            } else if (startsWith(a, off, len, "OK")) {
+                if (++u.oks == 2 && !u.failed) ready.add(u);
+            } else if (startsWith(a, off, len, "ERROR")) {
+                errors++;
+                if (u.oks < 2 && !u.failed) {
+                    u.failed = true;
+                    failed++;
+                    drop(u);
+                }
+            }
+        }
+
+        private void sendOne(long now, boolean measured) throws IOException {
+            SimUser u = ready.get(ThreadLocalRandom.current().nextInt(ready.size()));
+            sent++;
+            if (u.pending != null) {
+                // The server is not keeping up with this user's writes
+                backlogged++;
+                return;
+            }
+            byte[] stamp = Long.toString(now).getBytes(StandardCharsets.US_ASCII);
+            byte[] line = new byte[stamp.length + 1 + padding.length + 1];
+            System.arraycopy(stamp, 0, line, 0, stamp.length);
+            line[stamp.length] = ' ';
+            System.arraycopy(padding, 0, line, stamp.length + 1, padding.length);
+            line[line.length - 1] = '\n';
+            if (measured) {
+                measuredSent++;
+                measuredExpected += roomSize[u.room];
+            }
+            try {
+                write(u, line);
+            } catch (IOException e) {
+                drop(u);
+            }
+        }
+
+        private void write(SimUser u, byte[] bytes) throws IOException {
+            ByteBuffer out = ByteBuffer.wrap(bytes);
+            u.sc.write(out);
+            if (out.hasRemaining()) {
+                u.pending = out;
+                u.sc.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void flush(SimUser u) throws IOException {
+            if (u.pending == null) return;
+            u.sc.write(u.pending);
+            if (!u.pending.hasRemaining()) {
+                u.pending = null;
+                u.sc.keyFor(selector).interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void drop(SimUser u) {
+            if (!u.sc.isOpen()) return;
+            if (!u.connected) connecting--;
+            if (!u.failed) disconnects++;
+            ready.remove(u);
+            try {
+                u.sc.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+
+        private static boolean startsWith(byte[] a, int off, int len, String prefix) {
+            if (len < prefix.length()) return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (a[off + i] != prefix.charAt(i)) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package tcpchat;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+enum Level {
+    debug,
+    info,
+    warn,
+    error
+}
+
+// Server logging. The I/O threads never print: a record is dropped into a
+// lock-free ring buffer and a background thread formats and writes it. When
+// the ring is full the record is counted and thrown away rather than making
+// a reactor wait. Messages use "{}" placeholders that are filled in on the
+// background thread, so a record costs no string building on the hot path.
+class Log {
+    static final Level level = Level.valueOf(System.getProperty("chat.log.level", "info"));
+
+    // Per-message records (reads, frames sent) are debug records that are
+    // only kept one time out of sample
+    static final int sample = Integer.getInteger("chat.log.sample", 1000);
+
+    private static final int capacity = Integer.highestOneBit(Integer.getInteger("chat.log.buffer", 8192));
+    private static final int mask = capacity - 1;
+
+    // A slot is free for the producer at position p when its sequence is p,
+    // and holds a record for the consumer at p when its sequence is p + 1
+    private static final AtomicLongArray sequences = new AtomicLongArray(capacity);
+    private static final Level[] levels = new Level[capacity];
+    private static final long[] times = new long[capacity];
+    private static final String[] threads = new String[capacity];
+    private static final String[] templates = new String[capacity];
+    private static final Object[] firstArgs = new Object[capacity];
+    private static final Object[] secondArgs = new Object[capacity];
+
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long head;
+
+    static {
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drainAll));
+    }
+
+    static boolean enabled(Level l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    static void debug(String template, Object a, Object b) {
+        if (level == Level.debug) offer(Level.debug, template, a, b);
+    }
+
+    static void debug(String template, Object a) {
+        if (level == Level.debug) offer(Level.debug, template, a, null);
+    }
+
+    // A debug record for something that happens on every message, kept only
+    // one time out of sample
+    static void sampled(String template, Object a) {
+        if (level == Level.debug && ThreadLocalRandom.current().nextInt(sample) == 0)
+            offer(Level.debug, template, a, null);
+    }
+
+    // Same, for a number: it is only boxed when the record is kept
+    static void sampled(String template, int n) {
+        if (level == Level.debug && ThreadLocalRandom.current().nextInt(sample) == 0)
+            offer(Level.debug, template, n, null);
+    }
+
+    static void info(String template, Object a, Object b) {
+        if (enabled(Level.info)) offer(Level.info, template, a, b);
+    }
+
+    static void info(String template, Object a) {
+        if (enabled(Level.info)) offer(Level.info, template, a, null);
+    }
+
+    static void warn(String template, Object a, Object b) {
+        if (enabled(Level.warn)) offer(Level.warn, template, a, b);
+    }
+
+    static void warn(String template, Object a) {
+        if (enabled(Level.warn)) offer(Level.warn, template, a, null);
+    }
+
+    static void error(String template, Object a) {
+        offer(Level.error, template, a, null);
+    }
+
+    static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void offer(Level l, String template, Object a, Object b) {
+        long pos;
+        int i;
+        while (true) {
+            pos = tail.get();
+            i = (int) (pos & mask);
+            long seq = sequences.get(i);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+            } else if (seq < pos) {
+                // Full: the writer is behind by a whole ring
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        levels[i] = l;
+        times[i] = System.currentTimeMillis();
+        threads[i] = Thread.currentThread().getName();
+        templates[i] = template;
+        firstArgs[i] = a;
+        secondArgs[i] = b;
+        // Publishes the plain writes above to the writer thread
+        sequences.set(i, pos + 1);
+    }
+
+    private static void drain() {
+        long reportedDrops = 0;
+        while (true) {
+            if (!drainAll()) {
+                long d = dropped.get();
+                if (d != reportedDrops) {
+                    System.err.println("[log] " + (d - reportedDrops) + " records dropped, ring buffer full");
+                    reportedDrops = d;
+                }
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    // Writes out every published record; returns false if there was none
+    private static synchronized boolean drainAll() {
+        boolean any = false;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int i = (int) (head & mask);
+            if (sequences.get(i) != head + 1) break;
+            sb.setLength(0);
+            sb.append(Instant.ofEpochMilli(times[i])).append(' ').append(levels[i]).append(" [").append(threads[i]).append("] ");
+            format(sb, templates[i], firstArgs[i], secondArgs[i]);
+            PrintStream out = levels[i].compareTo(Level.warn) >= 0 ? System.err : System.out;
+            out.println(sb);
+            threads[i] = null;
+            templates[i] = null;
+            firstArgs[i] = null;
+            secondArgs[i] = null;
+            sequences.set(i, head + capacity);
+            head++;
+            any = true;
+        }
+        if (any) System.out.flush();
+        return any;
+    }
+
+    private static void format(StringBuilder sb, String template, Object a, Object b) {
+        int from = 0;
+        Object[] args = {a, b};
+        for (Object arg : args) {
+            int at = template.indexOf("{}", from);
+            if (at < 0) break;
+            sb.append(template, from, at).append(arg);
+            from = at + 2;
+        }
+        sb.append(template, from, template.length());
+    }
+}
@@ -0,0 +1,143 @@
+package tcpchat;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server counters and histograms. They are cheap enough to stay on: the
+// counters are LongAdders, which stripe updates across cells instead of
+// making threads fight over one word, and the histograms are striped by
+// thread. Gauges such as room sizes and queue depths are only computed when
+// a report is asked for.
+class Metrics {
+    static final LongAdder accepted = new LongAdder();
+    static final LongAdder closed = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder broadcasts = new LongAdder();
+    // Socket write calls, and the frames taken off the queues for them
+    static final LongAdder writes = new LongAdder();
+    static final LongAdder framesOut = new LongAdder();
+    // Broadcast lines queued for their recipients; a batched frame counts
+    // once for every line in it
+    static final LongAdder delivered = new LongAdder();
+
+    // Lines received, by CommandParser command id
+    static final String[] commandNames = {"message", "nick", "join", "leave", "bye", "priv", "stats", "history", "upgrade", "resume"};
+    static final LongAdder[] lines = new LongAdder[commandNames.length];
+
+    // Recipients per broadcast
+    static final Striped fanOut = new Striped();
+    // Time spent handling the keys of one selector wakeup, in microseconds
+    static final Striped loopMicros = new Striped();
+
+    static {
+        for (int i = 0; i < lines.length; i++) lines[i] = new LongAdder();
+    }
+
+    // Histograms that any thread can record into
+    static class Striped {
+        private final Histogram[] stripes = new Histogram[16];
+
+        Striped() {
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new Histogram();
+        }
+
+        void record(long value) {
+            Histogram h = stripes[(int) (Thread.currentThread().threadId() & (stripes.length - 1))];
+            synchronized (h) {
+                h.record(value);
+            }
+        }
+
+        Histogram snapshot() {
+            Histogram all = new Histogram();
+            for (Histogram h : stripes) {
+                synchronized (h) {
+                    all.add(h);
+                }
+            }
+            return all;
+        }
+    }
+
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("connections accepted ").append(accepted.sum()).append(", closed ").append(closed.sum())
+                .append(", open ").append(Sessions.size()).append('\n');
+        sb.append("bytes in ").append(bytesIn.sum()).append(", out ").append(bytesOut.sum()).append('\n');
+        sb.append("lines");
+        for (int i = 0; i < lines.length; i++) sb.append(' ').append(commandNames[i]).append(' ').append(lines[i].sum());
+        sb.append('\n');
+        long writeCalls = writes.sum();
+        long lines = delivered.sum();
+        sb.append("writes ").append(writeCalls).append(", frames out ").append(framesOut.sum())
+                .append(", broadcast lines delivered ").append(lines).append(", writes per line ")
+                .append(lines == 0 ? "0" : String.format("%.3f", (double) writeCalls / lines)).append('\n');
+        sb.append("broadcasts ").append(broadcasts.sum()).append(", fan-out ").append(fanOut.snapshot()).append('\n');
+        sb.append("selector loop us ").append(loopMicros.snapshot()).append('\n');
+
+        Histogram depth = new Histogram();
+        Sessions.forEach(user -> depth.record(user.getOutbound().getBytes()));
+        sb.append("outbound queue bytes ").append(depth).append(", dropped ").append(OutboundQueue.totalDropped.get())
+                .append(", slow consumers disconnected ").append(OutboundQueue.totalDisconnects.get()).append('\n');
+
+        if (RateLimit.enabled) {
+            sb.append("rate limited ").append(RateLimit.policy).append(": delayed ").append(RateLimit.totalDelayed.get())
+                    .append(", lines dropped ").append(RateLimit.totalDropped.get()).append(", disconnected ")
+                    .append(RateLimit.totalDisconnects.get()).append('\n');
+        }
+
+        if (Resumption.enabled) {
+            sb.append("sessions parked ").append(Resumption.parkedCount()).append(", parks ").append(Resumption.parks.get())
+                    .append(", resumed ").append(Resumption.resumed.get()).append(", expired ")
+                    .append(Resumption.expired.get()).append('\n');
+        }
+
+        if (Timeouts.enabled) {
+            sb.append("timed out: handshake ").append(Timeouts.handshakes.get()).append(", idle ")
+                    .append(Timeouts.idle.get()).append(", write stall ").append(Timeouts.stalled.get())
+                    .append(", pings sent ").append(Timeouts.pings.get()).append('\n');
+        }
+
+        Map<String, Integer> rooms = new TreeMap<>();
+        for (Room room : Room.rooms.values()) rooms.put(room.getName(), room.getNUsers());
+        sb.append("rooms ").append(rooms.size()).append(' ').append(rooms).append('\n');
+        sb.append("direct buffers allocated ").append(BufferPool.allocated.get()).append(" bytes, borrowed ")
+                .append(BufferPool.borrowed.get()).append(", pooled ").append(BufferPool.pooled.get()).append('\n');
+        if (Inbox.enabled) {
+            sb.append("inbox nicks ").append(Inbox.count()).append(", held ").append(Inbox.heldBytes())
+                    .append(" bytes, stored ").append(Inbox.stored.sum()).append(", spilled ").append(Inbox.spilled.sum())
+                    .append(", delivered ").append(Inbox.delivered.sum()).append(", dropped ").append(Inbox.dropped.sum())
+                    .append('\n');
+        }
+        if (History.enabled) {
+            sb.append("history appended ").append(History.appended.sum()).append(", dropped ")
+                    .append(History.dropped.sum()).append(", replayed ").append(History.replayed.sum()).append('\n');
+        }
+        if (Cluster.enabled) sb.append(Cluster.report()).append('\n');
+        sb.append("log records dropped ").append(Log.getDropped()).append('\n');
+        return sb.toString();
+    }
+
+    // Serves the report as text on http://127.0.0.1:<port>/stats
+    static void serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/stats", exchange -> {
+            byte[] body = report().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        Log.info("Stats on http://127.0.0.1:{}/stats", port);
+    }
+}
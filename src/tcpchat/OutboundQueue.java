@@ -0,0 +1,233 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+// What to do when a client does not read fast enough and its queue is full
+enum SlowConsumerPolicy {
+    dropOldest,
+    dropNewest,
+    disconnect
+}
+
+// Bounded queue of frames waiting to be written to one connection. The
+// selector drains it whenever the socket reports OP_WRITE. Any thread may
+// offer frames; only the thread that owns the socket writes them. Frames
+// are copied into a pooled direct buffer for writing, which the queue only
+// holds while some of it has not gone out yet.
+class OutboundQueue {
+    // Results of offer()
+    static final int QUEUED = 0;
+    static final int FIRST = 1;      // the queue was empty, someone has to flush it
+    static final int REJECTED = -1;  // the client must be disconnected
+    static final int DROPPED = 2;    // frames were dropped to stay within the limit
+
+    // Starts small: most connections never have more than a frame or two
+    // waiting, and the deque grows for the ones that do
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>(2);
+    // Bytes copied off the queue and not written yet, between position and
+    // limit; null while there are none
+    private ByteBuffer out;
+    private final int limit;
+    private final SlowConsumerPolicy policy;
+    private int bytes;
+    private int highWater;
+    // When bytes last went out, or the queue last stopped being empty
+    private long progressAt;
+    private long dropped;
+
+    // Totals over every connection, for the server stats
+    static final AtomicLong totalDropped = new AtomicLong();
+    static final AtomicLong totalDisconnects = new AtomicLong();
+
+    OutboundQueue(int limit, SlowConsumerPolicy policy) {
+        this.limit = limit;
+        this.policy = policy;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    synchronized int getBytes() {
+        return bytes;
+    }
+
+    synchronized int getFrames() {
+        return frames.size();
+    }
+
+    synchronized int getHighWater() {
+        return highWater;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    synchronized boolean isEmpty() {
+        return frames.isEmpty() && out == null;
+    }
+
+    // Since when nothing has been written although something is queued, or
+    // -1 if nothing is
+    synchronized long getStalledSince() {
+        return frames.isEmpty() && out == null ? -1 : progressAt;
+    }
+
+    // How full the queue is, between 0 and 1
+    synchronized double fill() {
+        return (double) bytes / limit;
+    }
+
+    // Returns FIRST if the frame went into an empty queue, REJECTED if the
+    // slow-consumer policy says the client must be disconnected, DROPPED if
+    // this frame or older ones were dropped to make room and QUEUED otherwise.
+    synchronized int offer(ByteBuffer frame) {
+        int size = frame.remaining();
+        boolean made = false;
+        // An empty queue always takes the frame, however big, so nothing gets stuck
+        while (!frames.isEmpty() && bytes + size > limit) {
+            if (policy == SlowConsumerPolicy.disconnect) {
+                totalDisconnects.incrementAndGet();
+                return REJECTED;
+            }
+            if (policy == SlowConsumerPolicy.dropNewest || !dropOldest()) {
+                dropped++;
+                totalDropped.incrementAndGet();
+                return DROPPED;
+            }
+            made = true;
+        }
+        boolean first = frames.isEmpty() && out == null;
+        if (first) progressAt = Timeouts.now();
+        frames.addLast(frame);
+        bytes += size;
+        if (bytes > highWater) highWater = bytes;
+        return first ? FIRST : made ? DROPPED : QUEUED;
+    }
+
+    // Drops the oldest frame that has not started going out on the wire; a
+    // half-written head must stay or the stream would be corrupted.
+    private boolean dropOldest() {
+        ByteBuffer head = frames.pollFirst();
+        if (head == null) return false;
+        ByteBuffer victim = head;
+        if (head.position() > 0) {
+            victim = frames.pollFirst();
+            frames.addFirst(head);
+            if (victim == null) return false;
+        }
+        bytes -= victim.remaining();
+        dropped++;
+        totalDropped.incrementAndGet();
+        return true;
+    }
+
+    // Size of the buffer frames are written from
+    static final int writeBuffer = Integer.getInteger("chat.writeBuffer", 16 * 1024);
+
+    // Writes as much as the socket takes without blocking, as many frames as
+    // fit in the write buffer per write call. Returns true once the queue is
+    // empty.
+    synchronized boolean flush(SocketChannel sc) throws IOException {
+        while (out != null || !frames.isEmpty()) {
+            if (out == null) out = BufferPool.acquire(writeBuffer).flip();
+            out.compact();
+            fill(out);
+            out.flip();
+            int written = sc.write(out);
+            if (written > 0) progressAt = Timeouts.now();
+            bytes -= written;
+            Metrics.writes.increment();
+            Metrics.bytesOut.add(written);
+            // The socket buffer is full; OP_WRITE will tell us when to go on
+            if (out.hasRemaining()) {
+                Events.partialWrite(sc, written, bytes, frames.size());
+                return false;
+            }
+            BufferPool.release(out);
+            out = null;
+        }
+        return true;
+    }
+
+    // Copies queued frames into the write buffer until it is full. A frame
+    // that does not fit stays at the head with its position moved.
+    private void fill(ByteBuffer buffer) {
+        ByteBuffer head;
+        while (buffer.hasRemaining() && (head = frames.peekFirst()) != null) {
+            BufferPool.transfer(head, buffer);
+            if (head.hasRemaining()) return;
+            frames.pollFirst();
+            Metrics.framesOut.increment();
+        }
+    }
+
+    // Copies queued frames into buffer until it is full, for writers that block
+    // on the socket and must not hold the queue's lock while they do. Returns
+    // the number of bytes copied.
+    synchronized int take(ByteBuffer buffer) {
+        int before = buffer.position();
+        fill(buffer);
+        int n = buffer.position() - before;
+        // The writer only comes back for more once the last lot is written
+        progressAt = Timeouts.now();
+        bytes -= n;
+        return n;
+    }
+
+    // Drops what had started going out on a connection that is gone: the
+    // write buffer, and the head frame if part of it was copied there. The
+    // rest of a frame would mean nothing to a new connection.
+    synchronized void abandon() {
+        if (out != null) {
+            bytes -= out.remaining();
+            BufferPool.release(out);
+            out = null;
+        }
+        ByteBuffer head = frames.peekFirst();
+        if (head != null && head.position() > 0) {
+            frames.pollFirst();
+            bytes -= head.remaining();
+        }
+    }
+
+    // Puts everything from holds ahead of this queue's frames, for a parked
+    // session resumed on from's connection: what that connection was already
+    // sent, including a write it is in the middle of, goes out first.
+    synchronized void takeOver(OutboundQueue from) {
+        abandon();
+        synchronized (from) {
+            out = from.out;
+            from.out = null;
+            for (Iterator<ByteBuffer> it = from.frames.descendingIterator(); it.hasNext(); ) {
+                frames.addFirst(it.next());
+            }
+            bytes += from.bytes;
+            from.frames.clear();
+            from.bytes = 0;
+        }
+        if (bytes > highWater) highWater = bytes;
+        progressAt = Timeouts.now();
+    }
+
+    synchronized void clear() {
+        frames.clear();
+        bytes = 0;
+        if (out != null) {
+            BufferPool.release(out);
+            out = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return bytes + "/" + limit + " bytes in " + frames.size() + " frames (high-water " + highWater
+                + ", dropped " + dropped + ")";
+    }
+}
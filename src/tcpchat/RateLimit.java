@@ -0,0 +1,61 @@
+package tcpchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// What to do with a client that sends faster than its rate limit
+enum OverLimitPolicy {
+    delay,       // stop reading from it until it is back under the limit
+    drop,        // read on, but throw its lines away
+    disconnect
+}
+
+// Token buckets for the lines and bytes one connection may send per
+// second. Each bucket holds up to chat.rate.burst seconds' worth, so a
+// client can paste a few lines at once but not keep a flood going. Only
+// the thread reading the connection uses it.
+class RateLimit {
+    static final double linesPerSecond = Double.parseDouble(System.getProperty("chat.rate.lines", "50"));
+    static final double bytesPerSecond = Double.parseDouble(System.getProperty("chat.rate.bytes", "65536"));
+    static final double burstSeconds = Double.parseDouble(System.getProperty("chat.rate.burst", "2"));
+    static final OverLimitPolicy policy = OverLimitPolicy.valueOf(System.getProperty("chat.rate.policy", "delay"));
+    static final boolean enabled = linesPerSecond > 0 || bytesPerSecond > 0;
+
+    // Totals over every connection, for the server stats
+    static final AtomicLong totalDelayed = new AtomicLong();
+    static final AtomicLong totalDropped = new AtomicLong();
+    static final AtomicLong totalDisconnects = new AtomicLong();
+
+    private double lines;
+    private double bytes;
+    private long last;
+
+    RateLimit() {
+        lines = linesPerSecond * burstSeconds;
+        bytes = bytesPerSecond * burstSeconds;
+        last = System.nanoTime();
+    }
+
+    // Nanoseconds until the next line may run, or 0 if it may now. A line
+    // needs a whole line token; bytes may go into debt by one line, which
+    // the next line then waits out.
+    long delay(long now) {
+        double seconds = (now - last) / 1e9;
+        last = now;
+        long wait = 0;
+        if (linesPerSecond > 0) {
+            lines = Math.min(linesPerSecond * burstSeconds, lines + seconds * linesPerSecond);
+            if (lines < 1) wait = (long) ((1 - lines) / linesPerSecond * 1e9);
+        }
+        if (bytesPerSecond > 0) {
+            bytes = Math.min(bytesPerSecond * burstSeconds, bytes + seconds * bytesPerSecond);
+            if (bytes < 0) wait = Math.max(wait, (long) (-bytes / bytesPerSecond * 1e9));
+        }
+        return wait;
+    }
+
+    // Pays for a line of n bytes, newline included
+    void charge(int n) {
+        lines--;
+        bytes -= n;
+    }
+}
@@ -0,0 +1,510 @@
+package tcpchat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// One selector thread. It owns the connections the acceptor handed to it:
+// only this thread reads from them, writes to them or closes them. Other
+// reactors reach them through the queues below and wake the selector up.
+class Reactor implements Runnable, Transport {
+    private final Selector selector;
+    private final Thread thread;
+
+    // Connections accepted but not registered with the selector yet
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+    // Users that got frames from another reactor while their queue was empty
+    private final Queue<User> scheduled = new ConcurrentLinkedQueue<>();
+
+    // Our own users that got frames during this loop iteration. They are
+    // flushed once at the end of it, so everything a busy room sent them in
+    // the meantime goes out in one gathering write.
+    private final List<User> dirty = new ArrayList<>();
+
+    // Work handed back to this thread, e.g. the rest of a /nick once the
+    // cluster has answered
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Users with lines held back, because they used up their share of a turn
+    // or their rate limit. Reading from them stops until these have run.
+    private final ArrayDeque<User> backlog = new ArrayDeque<>();
+    private static final ByteBuffer empty = ByteBuffer.allocate(0);
+
+    // Handshake, idle and write-stall timers of this reactor's users
+    private final TimerWheel wheel = new TimerWheel(Timeouts.now());
+
+    // Most lines one connection runs per loop iteration
+    static final int linesPerTurn = Integer.getInteger("chat.linesPerTurn", 16);
+
+    // Connections to close once the current event is handled (slow consumers,
+    // failed writes). Closing them right away could change a room's member
+    // list while a broadcast is iterating over it.
+    private final Queue<User> pendingClose = new ConcurrentLinkedQueue<>();
+
+    // A pre-allocated buffer for the received data. Reads are handled one at
+    // a time, so all of this reactor's connections share it; what is left of
+    // an unfinished line is kept by the connection's LineFramer.
+    private final ByteBuffer buffer = BufferPool.acquire(16384);
+
+    // Reused for every line read on this thread
+    private final CommandParser parser = new CommandParser();
+
+    Reactor(int id) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "reactor-" + id);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Called by the acceptor thread
+    void register(SocketChannel sc) {
+        accepted.add(sc);
+        selector.wakeup();
+    }
+
+    // A frame went into the empty queue of one of our users. On our own thread
+    // it goes out at the end of the current iteration; other threads hand the
+    // flush over to us.
+    @Override
+    public void wake(User user) {
+        if (!inLoop()) {
+            scheduled.add(user);
+            selector.wakeup();
+            return;
+        }
+        dirty.add(user);
+    }
+
+    @Override
+    public void close(User user) {
+        if (!user.markClosing()) return;
+        pendingClose.add(user);
+        if (!inLoop()) selector.wakeup();
+    }
+
+    @Override
+    public void handOver(User user, User session) {
+        if (user.getTimer() != null) wheel.cancel(user.getTimer());
+        session.takeConnection(user);
+        user.getKey().attach(session);
+        if (Timeouts.enabled) {
+            session.setTimer(new TimerWheel.Timer(() -> checkTimeouts(session)));
+            checkTimeouts(session);
+        }
+    }
+
+    // The user's input stays held back, with the lines after this one, until
+    // pending is done and then has run on this thread; the rest of its lines
+    // run on the backlog's next pass
+    @Override
+    public void await(User user, CompletableFuture<?> pending, Runnable then) {
+        if (!user.isInputPaused()) backlog.add(user);
+        user.pauseInput(Long.MAX_VALUE);
+        pending.whenComplete((result, e) -> {
+            tasks.add(() -> {
+                then.run();
+                if (user.isInputPaused()) user.pauseInput(System.nanoTime());
+            });
+            selector.wakeup();
+        });
+    }
+
+    // The connection was lost; parks its session if it can be kept (see
+    // Resumption) and says whether it did
+    private boolean park(User user) {
+        if (!Resumption.park(user)) return false;
+        if (user.getTimer() != null) wheel.cancel(user.getTimer());
+        user.getKey().cancel();
+        return true;
+    }
+
+    // A write failed, so the peer is gone
+    private void lost(User user) {
+        if (!park(user)) close(user);
+    }
+
+    @Override
+    public void drain(User user) {
+        try {
+            user.getOutbound().flush(user.getSocket());
+        } catch (IOException e) {
+            // The peer is already gone
+        }
+    }
+
+    // Writes what the socket accepts and keeps OP_WRITE armed only while
+    // something is still queued
+    void flush(User user) throws IOException {
+        boolean drained = user.getOutbound().flush(user.getSocket());
+        interest(user, drained);
+    }
+
+    // OP_READ unless the user's input is held back, OP_WRITE while its queue
+    // has something left
+    private void interest(User user, boolean drained) {
+        SelectionKey key = user.getKey();
+        if (key != null && key.isValid()) {
+            int ops = (user.isInputPaused() ? 0 : SelectionKey.OP_READ) | (drained ? 0 : SelectionKey.OP_WRITE);
+            if (key.interestOps() != ops) key.interestOps(ops);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // See if we've had any activity -- incoming data on one of our
+                // connections, or work handed over by another thread. Held
+                // back lines and timers cut the wait short.
+                long timeout = timeout();
+                if (timeout < 0) selector.select();
+                else if (timeout == 0) selector.selectNow();
+                else selector.select(timeout);
+            } catch (IOException | ClosedSelectorException e) {
+                // Nothing would serve this reactor's connections any more,
+                // while the acceptor kept handing it its share of new ones;
+                // like the single-threaded server, stop altogether
+                Log.error("Reactor stopped: {}", e);
+                System.exit(1);
+            }
+            try {
+                turn();
+            } catch (RuntimeException e) {
+                // A bug outside any one connection's handling; the next turn
+                // starts afresh
+                Log.warn("{}: {}", thread.getName(), e);
+            }
+        }
+    }
+
+    // Everything one wakeup of the selector has to do
+    private void turn() {
+        long started = System.nanoTime();
+        Events.SelectorStall stall = Events.selectorStall();
+
+        registerAccepted();
+        flushScheduled();
+        runTasks();
+        runBacklog();
+        wheel.advance(Timeouts.now());
+
+        // Get the keys corresponding to the activity that has been
+        // detected, and process them one by one
+        Set<SelectionKey> keys = selector.selectedKeys();
+        int selected = keys.size();
+        Iterator<SelectionKey> it = keys.iterator();
+        while (it.hasNext()) {
+            // Get a key representing one of bits of I/O activity
+            SelectionKey key = it.next();
+            try {
+                handle(key);
+            } catch (RuntimeException e) {
+                // Costs the connection it happened on, not the reactor
+                Log.warn("Closing {}: {}", key.channel(), e);
+                key.cancel();
+                close((User) key.attachment());
+            }
+        }
+
+        // We remove the selected keys, because we've dealt with them.
+        keys.clear();
+
+        // Closing broadcasts LEFT, and a failed flush closes; go on
+        // until neither has anything left
+        do {
+            flushDirty();
+            closePending();
+        } while (!dirty.isEmpty());
+        Metrics.loopMicros.record((System.nanoTime() - started) / 1000);
+        if (stall != null && stall.shouldCommit()) {
+            stall.keys = selected;
+            stall.held = backlog.size();
+            stall.timers = wheel.size();
+            stall.commit();
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (key.isValid() && key.isWritable()) {
+
+            // The socket has room again -- drain what was queued for it
+            User user = (User) key.attachment();
+            try {
+                flush(user);
+            } catch (IOException ie) {
+                lost(user);
+            }
+        }
+
+        if (key.isValid() && key.isReadable()) {
+
+            SocketChannel sc = (SocketChannel) key.channel();
+            User user = (User) key.attachment();
+
+            try {
+
+                // It's incoming data on a connection -- process it
+                boolean ok = processInput(user);
+
+                // If the connection is dead, remove it from the selector
+                // and close it, unless its session is kept for a /resume
+                if (!ok && !park(user)) {
+                    key.cancel();
+
+                    Socket s = null;
+                    try {
+                        s = sc.socket();
+                        Log.info("Closing connection to {}", s);
+                        user.remove();
+                    } catch (IOException ie) {
+                        Log.warn("Error closing socket {}: {}", s, ie);
+                    }
+                }
+
+            } catch (IOException ie) {
+                if (park(user)) return;
+                ChatServer.announceLeft(user);
+                // On exception, remove this channel from the selector
+                key.cancel();
+
+                try {
+                    user.remove();
+                } catch (IOException ie2) {
+                    Log.warn("{}", ie2);
+                }
+
+                Log.info("Closed {}", sc);
+            }
+        }
+    }
+
+    private void registerAccepted() {
+        SocketChannel sc;
+        while ((sc = accepted.poll()) != null) {
+            // Register it with the selector, for reading, and register a new user
+            SelectionKey key;
+            try {
+                key = sc.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                // Closed before it got here
+                Log.warn("{}: {}", sc, e);
+                continue;
+            }
+            User user = new User(sc, key, this);
+            // Every event on the key leads straight to its user
+            key.attach(user);
+            if (Timeouts.enabled) {
+                user.setTimer(new TimerWheel.Timer(() -> checkTimeouts(user)));
+                checkTimeouts(user);
+            }
+        }
+    }
+
+    private void flushScheduled() {
+        User user;
+        while ((user = scheduled.poll()) != null) {
+            // Parked, or resumed on another reactor since
+            if (user.isClosing() || !user.getSocket().isOpen() || user.getTransport() != this) continue;
+            try {
+                flush(user);
+            } catch (IOException e) {
+                lost(user);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.warn("{}", e);
+            }
+        }
+    }
+
+    private void flushDirty() {
+        for (int i = 0; i < dirty.size(); i++) {
+            User user = dirty.get(i);
+            if (user.isClosing() || !user.getSocket().isOpen() || user.getTransport() != this) continue;
+            try {
+                flush(user);
+            } catch (IOException e) {
+                lost(user);
+            }
+        }
+        dirty.clear();
+    }
+
+    private void closePending() {
+        User user;
+        while ((user = pendingClose.poll()) != null) {
+            SocketChannel sc = user.getSocket();
+            if (user.getTimer() != null) wheel.cancel(user.getTimer());
+            // Already closed through /bye or a failed read; a timer left
+            // behind finds the socket closed and goes away when it fires
+            if (!sc.isOpen()) continue;
+            if (user.getKey() != null) user.getKey().cancel();
+            // The user is marked as closing, so the broadcast skips it
+            if (user.getState() == States.inside)
+                ChatServer.announceLeft(user);
+            try {
+                Log.info("Closing connection to {}, outbound {}", sc.socket(), user.getOutbound());
+                user.remove();
+            } catch (Exception e) {
+                Log.warn("Error closing socket {}: {}", sc.socket(), e);
+            }
+        }
+    }
+
+    // Read what the socket has and run the complete lines in it
+    private boolean processInput(User user) throws IOException {
+        // Read the message to the buffer
+        buffer.clear();
+        SocketChannel sc = user.getSocket();
+        LineFramer framer = user.getFramer();
+        int bytesRead = sc.read(buffer);
+
+        // If no data, close the connection
+        if (bytesRead == -1) {
+            String rest = framer.rest().trim();
+            if (!rest.isEmpty()) {
+                try {
+                    ChatServer.commands(rest, user);
+                } catch (Exception e) {
+                    Log.warn("Error processing final partial input: {}", e);
+                }
+            }
+            return false;
+        }
+
+        if (bytesRead == 0) {
+            return true;
+        }
+
+        Log.sampled("read {}", bytesRead);
+        Metrics.bytesIn.add(bytesRead);
+        user.touch();
+
+        buffer.flip();
+        runLines(user, buffer);
+        return true;
+    }
+
+    // Runs the complete lines held for the user and then those in in, up to
+    // its share of this turn and its rate limit. Whatever is left is held by
+    // its framer, and reading stops until the backlog has caught up with it.
+    private void runLines(User user, ByteBuffer in) {
+        LineFramer framer = user.getFramer();
+        RateLimit limit = user.getRateLimit();
+        SocketChannel sc = user.getSocket();
+        try {
+            for (int n = 0; sc.isOpen() && !user.isClosing(); n++) {
+                long now = System.nanoTime();
+                if (n == linesPerTurn) {
+                    if (in.hasRemaining() || framer.hasLine()) hold(user, in, now);
+                    return;
+                }
+                long wait = limit == null ? 0 : limit.delay(now);
+                if (wait > 0 && RateLimit.policy == OverLimitPolicy.delay) {
+                    RateLimit.totalDelayed.incrementAndGet();
+                    hold(user, in, now + wait);
+                    return;
+                }
+                if (wait > 0 && RateLimit.policy == OverLimitPolicy.disconnect) {
+                    Log.warn("Disconnecting {}: over its rate limit", sc.socket());
+                    RateLimit.totalDisconnects.incrementAndGet();
+                    ChatServer.reply("ERROR", user);
+                    close(user);
+                    return;
+                }
+                // Blank lines are skipped by the parser
+                if (!framer.next(in)) return;
+                if (wait > 0) {
+                    RateLimit.totalDropped.incrementAndGet();
+                    continue;
+                }
+                if (limit != null) limit.charge(framer.lineLength() + 1);
+                ChatServer.commands(parser, framer.lineArray(), framer.lineOffset(), framer.lineLength(), user);
+                User session = (User) user.getKey().attachment();
+                if (session != user) {
+                    // The line resumed a session, which reads the rest
+                    hold(session, in, now);
+                    return;
+                }
+                if (user.isInputPaused()) {
+                    // The line waits on something (see await); the rest after it
+                    hold(user, in, user.getResumeInputAt());
+                    return;
+                }
+            }
+        } catch (ProtocolException e) {
+            // Unbounded input: refuse it instead of buffering it
+            Log.warn("Rejecting {}: {}", sc.socket(), e.getMessage());
+            ChatServer.reply("ERROR", user);
+            close(user);
+        } catch (Exception e) {
+            // What is left of in is lost with it, so going on would run
+            // the rest of the stream from the middle of a line
+            Log.warn("Closing {}: {}", sc.socket(), e);
+            close(user);
+        }
+    }
+
+    // Keeps the rest of in for a later turn and stops reading until then
+    private void hold(User user, ByteBuffer in, long until) {
+        user.getFramer().hold(in);
+        if (!user.isInputPaused()) backlog.add(user);
+        user.pauseInput(until);
+        interest(user, user.getOutbound().isEmpty());
+    }
+
+    // Gives every user in the backlog whose time has come another turn, and
+    // goes back to reading from those that have run all they held
+    private void runBacklog() {
+        long now = System.nanoTime();
+        for (int i = backlog.size(); i > 0; i--) {
+            User user = backlog.poll();
+            if (user.isClosing() || !user.getSocket().isOpen() || user.getTransport() != this) continue;
+            if (user.getResumeInputAt() > now) {
+                backlog.add(user);
+                continue;
+            }
+            user.resumeInput();
+            runLines(user, empty);
+            if (!user.isInputPaused()) interest(user, user.getOutbound().isEmpty());
+        }
+    }
+
+    private void checkTimeouts(User user) {
+        try {
+            long next = Timeouts.check(user, Timeouts.now());
+            if (next >= 0) wheel.schedule(user.getTimer(), next);
+        } catch (RuntimeException e) {
+            Log.warn("Closing {}: {}", user.getSocket(), e);
+            close(user);
+        }
+    }
+
+    // How long select may wait: -1 for as long as it takes, 0 not at all
+    private long timeout() {
+        long timers = wheel.timeout(Timeouts.now());
+        if (backlog.isEmpty()) return timers;
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (User user : backlog) next = Math.min(next, user.getResumeInputAt() - now);
+        long lines = next <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+        return timers < 0 ? lines : Math.min(lines, timers);
+    }
+}
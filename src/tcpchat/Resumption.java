@@ -0,0 +1,147 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sessions that outlive their connection. With chat.resumeMillis set, the
+// first /nick is also answered with "TOKEN <token>", and a connection that
+// is lost without /bye leaves its session parked for that long: still in
+// its room under its nick, with what it is sent piling up in its outbound
+// queue, which chat.outboundLimit and chat.slowConsumer bound as usual. A
+// new connection whose first command is "/resume <token>" gets the session
+// back, answered with a fresh TOKEN and OK and then what it missed; the
+// room never sees it leave or come back. A session nobody resumes in time
+// leaves then, LEFT and all. What the lost socket had already been given
+// is not replayed, nor the rest of a write buffer it was in the middle of.
+// Sessions are only kept in memory, so they do not survive a restart.
+class Resumption {
+    static final long graceMillis = Long.getLong("chat.resumeMillis", 0);
+    static final boolean enabled = graceMillis > 0;
+
+    // Totals, for the server stats
+    static final AtomicLong parks = new AtomicLong();
+    static final AtomicLong resumed = new AtomicLong();
+    static final AtomicLong expired = new AtomicLong();
+
+    // Parked sessions by token. Resuming and expiring both take the entry
+    // out, so a session goes to only one of them.
+    private static final Map<String, User> parked = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+    private static ScheduledExecutorService timer;
+
+    // The transport of a parked session: frames only queue up, and a close
+    // (its queue overflowed under the disconnect policy) ends the session
+    static final Transport away = new Transport() {
+        @Override
+        public void wake(User user) {
+        }
+
+        @Override
+        public void close(User user) {
+            String token = user.getToken();
+            timer().execute(() -> expire(user, token));
+        }
+
+        @Override
+        public void drain(User user) {
+        }
+
+        @Override
+        public void handOver(User user, User session) {
+            throw new IllegalStateException("No connection to hand over");
+        }
+    };
+
+    static int parkedCount() {
+        return parked.size();
+    }
+
+    // Gives the user its token on its first /nick; null if it already has
+    // one or sessions are not kept
+    static String issue(User user) {
+        if (!enabled || user.getToken() != null) return null;
+        String token = newToken();
+        user.setToken(token);
+        return token;
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // Keeps the session of a connection that was lost, rather than closed by
+    // /bye or by the server; false if it is not to be kept. Called by the
+    // thread that owns the connection, once it has stopped reading it.
+    static boolean park(User user) {
+        String token = user.getToken();
+        if (!enabled || token == null || user.isClosing()) return false;
+        user.park(away);
+        parked.put(token, user);
+        parks.incrementAndGet();
+        timer().schedule(() -> expire(user, token), graceMillis, TimeUnit.MILLISECONDS);
+        Log.info("Parked the session of {}", user.getName());
+        return true;
+    }
+
+    // Moves the session parked under token onto the connection user came in
+    // on, which has not sent /nick. Runs on that connection's thread.
+    static void resume(String token, User user) {
+        User session = parked.get(token);
+        if (user.getState() != States.init || session == null || session.isBinary() != user.isBinary()
+                || !parked.remove(token, session)) {
+            ChatServer.reply("ERROR", user);
+            return;
+        }
+        String next = newToken();
+        session.setToken(next);
+        // Queued behind whatever this connection was sent so far, and ahead of
+        // what the session missed once its queue takes them over
+        ChatServer.reply("TOKEN " + next, user);
+        ChatServer.reply("OK", user);
+        user.markClosing();
+        // The session's old connection is the one that ends
+        Sessions.remove(user.getId(), user);
+        Metrics.closed.increment();
+        session.getOutbound().takeOver(user.getOutbound());
+        user.getTransport().handOver(user, session);
+        resumed.incrementAndGet();
+        Log.info("Resumed the session of {}", session.getName());
+        try {
+            session.getTransport().wake(session);
+        } catch (IOException e) {
+            Log.warn("{}", e.getMessage());
+        }
+    }
+
+    // Ends a session nobody resumed, unless it was resumed meanwhile
+    private static void expire(User user, String token) {
+        if (!parked.remove(token, user)) return;
+        expired.incrementAndGet();
+        if (user.getState() == States.inside) ChatServer.announceLeft(user);
+        try {
+            user.remove();
+        } catch (Exception e) {
+            Log.warn("Ending the session of {}: {}", user.getName(), e);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "resume-timer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,58 @@
+package tcpchat;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// Every connected user, under a dense int session id. The id of a closed
+// connection is handed out again, so ids stay below the most connections
+// ever open at once and the table is a plain array, with no hashing and no
+// entry objects. The I/O path never looks a user up here: a reactor finds
+// it on the SelectionKey's attachment and a virtual thread holds it.
+class Sessions {
+    // Volatile for forEach, which reads them without the lock
+    private static volatile User[] table = new User[1024];
+    // Ids given back, taken again last in first out
+    private static int[] free = new int[256];
+    private static int freeCount;
+    // Ids below this have been handed out at least once
+    private static volatile int next;
+    private static int open;
+
+    static synchronized int add(User user) {
+        int id = freeCount > 0 ? free[--freeCount] : next++;
+        if (id == table.length) table = Arrays.copyOf(table, 2 * table.length);
+        table[id] = user;
+        open++;
+        return id;
+    }
+
+    // Returns false if the user was already removed
+    static synchronized boolean remove(int id, User user) {
+        if (table[id] != user) return false;
+        table[id] = null;
+        if (freeCount == free.length) free = Arrays.copyOf(free, 2 * free.length);
+        free[freeCount++] = id;
+        open--;
+        return true;
+    }
+
+    static synchronized User get(int id) {
+        return id < next ? table[id] : null;
+    }
+
+    static synchronized int size() {
+        return open;
+    }
+
+    // For the stats. It takes no lock, so accepts and closes never wait on
+    // it; a user added or removed meanwhile may be missed or still seen,
+    // which a gauge can live with.
+    static void forEach(Consumer<User> action) {
+        User[] users = table;
+        int n = Math.min(next, users.length);
+        for (int i = 0; i < n; i++) {
+            User user = users[i];
+            if (user != null) action.accept(user);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package tcpchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits on how long a client connection may sit there: without a /nick,
+// without sending anything, or with its outbound queue making no progress.
+// With chat.keepaliveMillis set the server also sends PING to clients that
+// have been quiet that long; any line, a blank one included, answers it.
+// Each connection has one timer on its engine's TimerWheel, which calls
+// check() when the earliest limit is due. Input only updates a timestamp,
+// so the timer is moved at most once per limit, not on every read.
+class Timeouts {
+    static final long handshakeMillis = Long.getLong("chat.handshakeMillis", 30_000);
+    static final long idleMillis = Long.getLong("chat.idleMillis", 0);
+    static final long keepaliveMillis = Long.getLong("chat.keepaliveMillis", 0);
+    static final long writeStallMillis = Long.getLong("chat.writeStallMillis", 60_000);
+    static final boolean enabled = handshakeMillis > 0 || idleMillis > 0 || keepaliveMillis > 0 || writeStallMillis > 0;
+
+    // Totals, for the server stats
+    static final AtomicLong handshakes = new AtomicLong();
+    static final AtomicLong idle = new AtomicLong();
+    static final AtomicLong stalled = new AtomicLong();
+    static final AtomicLong pings = new AtomicLong();
+
+    // The clock every deadline is on
+    static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    // Closes the user if a limit has run out and sends a PING if one is due.
+    // Returns when to check again, or -1 if there is nothing left to watch.
+    static long check(User user, long now) {
+        if (user.isClosing() || !user.getSocket().isOpen()) return -1;
+        long next = Long.MAX_VALUE;
+        if (handshakeMillis > 0 && user.getState() == States.init) {
+            long at = user.getConnectedAt() + handshakeMillis;
+            if (now >= at) return expire(user, handshakes, "no /nick in time");
+            next = Math.min(next, at);
+        }
+        long lastInput = user.getLastInput();
+        if (idleMillis > 0) {
+            long at = lastInput + idleMillis;
+            if (now >= at) return expire(user, idle, "idle");
+            next = Math.min(next, at);
+        }
+        if (keepaliveMillis > 0) {
+            long at = Math.max(lastInput, user.getPingedAt()) + keepaliveMillis;
+            if (now >= at) {
+                ChatServer.reply("PING", user);
+                pings.incrementAndGet();
+                user.setPingedAt(now);
+                at = now + keepaliveMillis;
+            }
+            next = Math.min(next, at);
+        }
+        if (writeStallMillis > 0) {
+            long since = user.getOutbound().getStalledSince();
+            if (since >= 0) {
+                long at = since + writeStallMillis;
+                if (now >= at) return expire(user, stalled, "not reading what it is sent");
+                next = Math.min(next, at);
+            } else {
+                // Nothing queued now; look again a full period on
+                next = Math.min(next, now + writeStallMillis);
+            }
+        }
+        return next == Long.MAX_VALUE ? -1 : next;
+    }
+
+    private static long expire(User user, AtomicLong counter, String reason) {
+        Log.info("Closing connection to {}: {}", user.getSocket().socket(), reason);
+        counter.incrementAndGet();
+        user.getTransport().close(user);
+        return -1;
+    }
+}
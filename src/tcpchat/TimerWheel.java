@@ -0,0 +1,113 @@
+package tcpchat;
+
+// Hashed timer wheel: a ring of slots, each a linked list of the timers
+// due in it. Scheduling or cancelling a timer is O(1) whatever the number
+// of timers, and each tick only looks at one slot; a timer further out than
+// one turn of the wheel stays in its slot and is passed over until its turn
+// comes. Deadlines are rounded up to the tick. Not thread-safe: a reactor
+// drives its own wheel from its selector loop.
+class TimerWheel {
+    static final long tickMillis = Long.getLong("chat.timer.tickMillis", 100);
+    private static final int slotCount = 512;
+
+    private final Timer[] slots = new Timer[slotCount];
+    // Ticks up to this one have been run
+    private long tick;
+    private int size;
+    // Tick of the earliest deadline, or unknown until timeout() looks for it
+    // again after that timer was cancelled or run
+    private long earliest = unknown;
+    private static final long unknown = -1;
+
+    // A timer is reused for the life of its owner; schedule() moves it
+    static class Timer {
+        private final Runnable task;
+        private Timer prev, next;
+        private long deadlineTick;
+        private boolean scheduled;
+
+        Timer(Runnable task) {
+            this.task = task;
+        }
+
+        boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    TimerWheel(long nowMillis) {
+        tick = nowMillis / tickMillis;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Runs timer's task once the clock passes deadlineMillis
+    void schedule(Timer timer, long deadlineMillis) {
+        cancel(timer);
+        // Never in a tick that has already run
+        timer.deadlineTick = Math.max(tick + 1, (deadlineMillis + tickMillis - 1) / tickMillis);
+        int slot = (int) (timer.deadlineTick & (slotCount - 1));
+        timer.next = slots[slot];
+        if (timer.next != null) timer.next.prev = timer;
+        timer.prev = null;
+        slots[slot] = timer;
+        timer.scheduled = true;
+        size++;
+        if (earliest != unknown) earliest = Math.min(earliest, timer.deadlineTick);
+    }
+
+    void cancel(Timer timer) {
+        if (!timer.scheduled) return;
+        if (timer.prev != null) timer.prev.next = timer.next;
+        else slots[(int) (timer.deadlineTick & (slotCount - 1))] = timer.next;
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = timer.next = null;
+        timer.scheduled = false;
+        size--;
+        if (timer.deadlineTick == earliest) earliest = unknown;
+    }
+
+    // Milliseconds until the earliest deadline, or -1 if no timer is
+    // scheduled
+    long timeout(long nowMillis) {
+        if (size == 0) return -1;
+        if (earliest == unknown) earliest = findEarliest();
+        return Math.max(0, earliest * tickMillis - nowMillis);
+    }
+
+    // Walks the slots from the next tick on, and stops at the first one with
+    // a timer due in this turn of the wheel
+    private long findEarliest() {
+        long best = Long.MAX_VALUE;
+        for (int i = 1; i <= slotCount; i++) {
+            for (Timer timer = slots[(int) ((tick + i) & (slotCount - 1))]; timer != null; timer = timer.next) {
+                best = Math.min(best, timer.deadlineTick);
+            }
+            if (best <= tick + i) return best;
+        }
+        return best;
+    }
+
+    // Runs every timer that is due by nowMillis. A task may schedule timers,
+    // its own included.
+    void advance(long nowMillis) {
+        long until = nowMillis / tickMillis;
+        // After a long stall, one turn of the wheel covers every slot
+        if (until - tick > slotCount) tick = until - slotCount;
+        while (tick < until) {
+            tick++;
+            int slot = (int) (tick & (slotCount - 1));
+            Timer timer = slots[slot];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadlineTick <= until) {
+                    cancel(timer);
+                    timer.task.run();
+                }
+                timer = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package tcpchat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// The blocking counterpart of the reactors: every connection gets a virtual
+// thread that reads and runs commands, and a second one that writes its
+// outbound queue. Commands, users and rooms are the same as with the
+// selector engine, so the two can be compared on the same workload.
+class VirtualThreadServer {
+
+    // How long a closing connection waits for its last frames to go out
+    static final long drainMillis = Long.getLong("chat.drainMillis", 1000);
+
+    // Size of each connection's read buffer. A rejected line shorter than
+    // this is read in full before the close, so the ERROR is not lost to a
+    // reset.
+    static final int readBuffer = Integer.getInteger("chat.vt.readBuffer", 16 * 1024);
+
+    // Timeouts of every connection, on one wheel driven by its own thread;
+    // the wheel's lock is held while it runs or schedules timers
+    private static final TimerWheel wheel = new TimerWheel(Timeouts.now());
+    // Sleeps until the wheel's earliest deadline; woken when a timer is set
+    private static Thread timers;
+
+    static void serve(ServerSocketChannel ssc) throws IOException {
+        if (Timeouts.enabled) timers = Thread.ofPlatform().daemon().name("timeouts").start(VirtualThreadServer::runTimers);
+        while (true) {
+            SocketChannel sc = ssc.accept();
+            Metrics.accepted.increment();
+            Log.info("Got connection from {}", sc.socket());
+            Connection connection = new Connection(sc);
+            Thread.ofVirtual().name("reader-" + sc.socket().getPort()).start(connection::read);
+        }
+    }
+
+    private static void runTimers() {
+        while (true) {
+            long timeout;
+            synchronized (wheel) {
+                wheel.advance(Timeouts.now());
+                timeout = wheel.timeout(Timeouts.now());
+            }
+            if (timeout < 0) LockSupport.park();
+            else LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeout)));
+        }
+    }
+
+    private static void checkTimeouts(User user) {
+        synchronized (wheel) {
+            long next = Timeouts.check(user, Timeouts.now());
+            if (next >= 0) wheel.schedule(user.getTimer(), next);
+        }
+        // It may be due before whatever the timer thread is waiting for
+        if (Thread.currentThread() != timers) LockSupport.unpark(timers);
+    }
+
+    static class Connection implements Transport {
+        private final SocketChannel sc;
+        // Becomes the session this connection resumes, if it does
+        private volatile User user;
+        private final Thread writer;
+        private volatile boolean finishing;
+
+        Connection(SocketChannel sc) {
+            this.sc = sc;
+            user = new User(sc, null, this);
+            writer = Thread.ofVirtual().name("writer-" + sc.socket().getPort()).unstarted(this::write);
+        }
+
+        private void read() {
+            writer.start();
+            if (Timeouts.enabled) {
+                user.setTimer(new TimerWheel.Timer(() -> checkTimeouts(user)));
+                checkTimeouts(user);
+            }
+            // A blocking read needs somewhere to land while it waits, so this
+            // one is held for the life of the connection
+            ByteBuffer buffer = BufferPool.acquire(readBuffer);
+            CommandParser parser = new CommandParser();
+            LineFramer framer = user.getFramer();
+            // Refused for what it sent, rather than a slow consumer
+            boolean rejected = false;
+            try {
+                int n;
+                while ((n = sc.read(buffer)) != -1) {
+                    Metrics.bytesIn.add(n);
+                    user.touch();
+                    buffer.flip();
+                    runLines(buffer, parser);
+                    buffer.clear();
+                }
+                String rest = framer.rest().trim();
+                if (!rest.isEmpty()) ChatServer.commands(rest, user);
+            } catch (ProtocolException e) {
+                // Unbounded input: refuse it instead of buffering it. Marked
+                // as closing, so the session is not kept for a /resume.
+                Log.warn("Rejecting {}: {}", sc.socket(), e.getMessage());
+                ChatServer.reply("ERROR", user);
+                rejected = user.markClosing();
+            } catch (Exception e) {
+                // Closed by /bye, by close() or by the peer
+                if (sc.isOpen()) Log.warn("{}", e);
+            }
+            BufferPool.release(buffer);
+            if (user.getTimer() != null) {
+                synchronized (wheel) {
+                    wheel.cancel(user.getTimer());
+                }
+            }
+
+            // Already removed by /bye
+            if (!sc.isOpen()) return;
+            // Lost rather than closed: the session may be kept for a /resume
+            if (Resumption.park(user)) {
+                stopWriter();
+                return;
+            }
+            // A slow consumer's backlog is dropped; a rejected client still
+            // gets its ERROR
+            if (user.isClosing() && !rejected) user.getOutbound().clear();
+            if (user.getState() == States.inside)
+                ChatServer.announceLeft(user);
+            try {
+                Log.info("Closing connection to {}, outbound {}", sc.socket(), user.getOutbound());
+                user.remove();
+            } catch (Exception e) {
+                Log.warn("Error closing socket {}: {}", sc.socket(), e);
+            }
+        }
+
+        // Runs the complete lines in in. Over its rate limit, the thread just
+        // sleeps it off, which stops reading from the socket meanwhile; it
+        // also yields after every chat.linesPerTurn lines, so one flood does
+        // not keep the carrier threads to itself.
+        private void runLines(ByteBuffer in, CommandParser parser) throws Exception {
+            LineFramer framer = user.getFramer();
+            RateLimit limit = user.getRateLimit();
+            for (int n = 1; sc.isOpen(); n++) {
+                long wait = limit == null ? 0 : limit.delay(System.nanoTime());
+                if (wait > 0 && RateLimit.policy == OverLimitPolicy.delay) {
+                    RateLimit.totalDelayed.incrementAndGet();
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                if (wait > 0 && RateLimit.policy == OverLimitPolicy.disconnect) {
+                    RateLimit.totalDisconnects.incrementAndGet();
+                    throw new ProtocolException("Over the rate limit");
+                }
+                if (!framer.next(in)) return;
+                if (wait > 0) {
+                    RateLimit.totalDropped.incrementAndGet();
+                    continue;
+                }
+                if (limit != null) limit.charge(framer.lineLength() + 1);
+                ChatServer.commands(parser, framer.lineArray(), framer.lineOffset(), framer.lineLength(), user);
+                if (n % Reactor.linesPerTurn == 0) Thread.yield();
+            }
+        }
+
+        // Blocking writes happen outside the queue's lock, so a slow reader
+        // only holds up its own writer thread
+        private void write() {
+            // The write buffer is only borrowed while there is something to write
+            ByteBuffer out = null;
+            try {
+                while (true) {
+                    User user;
+                    // A parked session's queue is kept for whoever resumes it
+                    while ((user = this.user).getTransport() == this && !user.getOutbound().isEmpty()) {
+                        if (out == null) out = BufferPool.acquire(OutboundQueue.writeBuffer);
+                        if (user.getOutbound().take(out) == 0) break;
+                        out.flip();
+                        while (out.hasRemaining()) {
+                            Metrics.bytesOut.add(sc.write(out));
+                            Metrics.writes.increment();
+                        }
+                        out.clear();
+                    }
+                    if (out != null) {
+                        BufferPool.release(out);
+                        out = null;
+                    }
+                    if (finishing) return;
+                    LockSupport.park(this);
+                }
+            } catch (IOException e) {
+                // The peer is gone; the reader sees the end of input and
+                // parks or removes the user
+                try {
+                    sc.shutdownInput();
+                } catch (IOException e2) {
+                    // Already closed
+                }
+            } finally {
+                if (out != null) BufferPool.release(out);
+            }
+        }
+
+        // Waits for the writer to finish, which, with the socket closed, it
+        // does once it is out of a write it may be blocked in
+        private void stopWriter() {
+            finishing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(drainMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void wake(User user) {
+            LockSupport.unpark(writer);
+        }
+
+        // Ends the reader's blocking read, which then cleans up
+        @Override
+        public void close(User user) {
+            if (!user.markClosing()) return;
+            try {
+                sc.shutdownInput();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        @Override
+        public void handOver(User from, User session) {
+            if (from.getTimer() != null) {
+                synchronized (wheel) {
+                    wheel.cancel(from.getTimer());
+                }
+            }
+            session.takeConnection(from);
+            user = session;
+            if (Timeouts.enabled) {
+                session.setTimer(new TimerWheel.Timer(() -> checkTimeouts(session)));
+                checkTimeouts(session);
+            }
+        }
+
+        @Override
+        public void drain(User user) {
+            finishing = true;
+            LockSupport.unpark(writer);
+            if (Thread.currentThread() == writer) return;
+            try {
+                writer.join(drainMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}